@@ -0,0 +1,62 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.benchmark;
+
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDateTime;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/** A customer with all supported date types and a key reference, the codec is generated */
+@Entity
+public class BenchCustomer {
+	@Id public Long _id;
+	@Index public String name;
+	@Index public String surname;
+	@Index public String email;
+	public String address;
+	public String plz;
+	public String location;
+	public Date date;
+	public LocalDateTime date1;
+	public DateTime date2;
+	public Key<BenchCustomer> referrer;
+	
+	/** A customer with all attributes set, <code>id</code> also selects the referenced customer */
+	public static BenchCustomer sample(long id) {
+		BenchCustomer customer = new BenchCustomer();
+		customer._id = id;
+		customer.name = "Name" + id;
+		customer.surname = "Surname" + (id % 10);
+		customer.email = "customer" + id + "@example.com";
+		customer.address = "Bahnhofstrasse " + id;
+		customer.plz = "8001";
+		customer.location = "Zurich";
+		customer.date = new Date(1402764153970L + id * 60000);
+		customer.date1 = new LocalDateTime(2014, 6, 14, 18, 42).plusMinutes((int) id);
+		customer.date2 = new DateTime(1402764153970L + id * 60000);
+		customer.referrer = Key.create(BenchCustomer.class, id + 1);
+		return customer;
+	}
+}
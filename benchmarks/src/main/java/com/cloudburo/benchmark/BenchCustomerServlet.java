@@ -0,0 +1,46 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.benchmark;
+
+import com.cloudburo.servlet.OfyService;
+import com.cloudburo.servlet.RestAPIServlet;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.impl.translate.opt.joda.JodaTimeTranslators;
+
+/** Servlet of {@link BenchCustomer} with the default configuration, i.e. without caches */
+@SuppressWarnings("serial")
+public class BenchCustomerServlet extends RestAPIServlet {
+	
+	static {
+		// Loads the translators of the OfyService before the entity is registered
+		OfyService.factory();
+		JodaTimeTranslators.add(ObjectifyService.factory());
+		ObjectifyService.factory().register(BenchCustomer.class);
+	}
+	
+	@SuppressWarnings("rawtypes")
+	protected Class getPersistencyClass() {
+		return BenchCustomer.class;
+	}
+	
+	protected Objectify ofy() {
+		return ObjectifyService.ofy();
+	}
+}
@@ -0,0 +1,494 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudburo.servlet.EntityCache;
+import com.cloudburo.servlet.GsonWrapper;
+import com.cloudburo.servlet.LocalEntityCache;
+import com.cloudburo.servlet.PageCache;
+import com.cloudburo.servlet.RestAPIServlet;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * Concurrent end-to-end load test of a {@link BenchCustomerServlet} against the local Datastore. 
+ * Simulated clients run a weighted mix of object reads, collection pages, filter queries, creates, 
+ * updates and deletes through <code>service()</code>. After a warm up the throughput, the latency 
+ * percentiles and the allocated bytes of every operation are measured for a fixed time.
+ * <p>
+ * Every response is checked for state of other requests: an object must be consistent in itself 
+ * (name, email and surname derive from the identifier), filter results must match the filter, 
+ * selections may only contain the selected fields and a client must read its own last update of 
+ * the objects only it writes. The exit code is 1 if a request failed or a response was corrupted, 
+ * which makes the test a gate for changes of the request handling.
+ * <pre>
+ * java -cp target/benchmarks.jar com.cloudburo.benchmark.LoadTest -clients 16 -warmup 10 -seconds 30 
+ *      -mix get=40,list=20,filter=10,post=10,put=15,delete=5
+ * </pre>
+ * With <code>-nocache</code> the entity and page caches are disabled.
+ */
+public class LoadTest {
+	
+	enum Operation { GET, LIST, FILTER, POST, PUT, DELETE }
+	
+	/** Identifier range of the objects created, updated and deleted by a single client */
+	private static final long CLIENT_RANGE = 1000000L;
+	private static final int PAGE_SIZE = 20;
+	private static final int MAX_SAMPLES = 10;
+	private static final String USAGE = "Usage: LoadTest [-clients n] [-warmup seconds] [-seconds seconds] "
+			+ "[-entities n] [-mix get=40,list=20,filter=10,post=10,put=15,delete=5] [-nocache]";
+	
+	private int clients = 8;
+	private int warmupSeconds = 5;
+	private int seconds = 20;
+	private int entities = 1000;
+	private String mix = "get=40,list=20,filter=10,post=10,put=15,delete=5";
+	private boolean cached = true;
+	private final Map<Operation,Integer> weights = new EnumMap<Operation,Integer>(Operation.class);
+	private int totalWeight;
+	
+	private RestAPIServlet servlet;
+	private final Gson gson = new GsonWrapper().getGson();
+	private volatile boolean measuring;
+	private volatile boolean stopped;
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong corrupted = new AtomicLong();
+	private final ConcurrentLinkedQueue<String> samples = new ConcurrentLinkedQueue<String>();
+	
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		try {
+			test.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		System.exit(test.run() ? 0 : 1);
+	}
+	
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("-nocache")) {
+				cached = false;
+				continue;
+			}
+			if (i + 1 == args.length) throw new IllegalArgumentException("Missing value of " + option);
+			String value = args[++i];
+			try {
+				if (option.equals("-clients")) clients = Integer.parseInt(value);
+				else if (option.equals("-warmup")) warmupSeconds = Integer.parseInt(value);
+				else if (option.equals("-seconds")) seconds = Integer.parseInt(value);
+				else if (option.equals("-entities")) entities = Integer.parseInt(value);
+				else if (option.equals("-mix")) mix = value;
+				else throw new IllegalArgumentException("Unknown option " + option);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+			}
+		}
+		for (String entry : mix.split(",")) {
+			String[] pair = entry.split("=");
+			try {
+				int weight = Integer.parseInt(pair[1].trim());
+				weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), weight);
+				totalWeight += weight;
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid mix entry " + entry);
+			}
+		}
+		if (clients < 1 || seconds < 1 || entities < 1 || totalWeight < 1) 
+			throw new IllegalArgumentException("Clients, seconds, entities and the mix must be positive");
+		if (entities >= CLIENT_RANGE) 
+			throw new IllegalArgumentException("At most " + (CLIENT_RANGE - 1) + " entities");
+	}
+	
+	@SuppressWarnings("serial")
+	private boolean run() throws Exception {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+		helper.setUp();
+		try {
+			if (threads instanceof com.sun.management.ThreadMXBean) 
+				((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+			servlet = cached ? new BenchCustomerServlet() {
+				protected EntityCache createEntityCache() {
+					return new LocalEntityCache(10000, 60000);
+				}
+				protected PageCache createPageCache() {
+					return new PageCache(1000, 60000);
+				}
+			} : new BenchCustomerServlet();
+			servlet.init();
+			populate();
+			
+			ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+			CountDownLatch start = new CountDownLatch(1);
+			List<Client> simulated = new ArrayList<Client>(clients);
+			List<Thread> workers = new ArrayList<Thread>(clients);
+			for (int i = 0; i < clients; i++) {
+				Client client = new Client(i, environment, start);
+				Thread worker = new Thread(client, "client-" + i);
+				simulated.add(client);
+				workers.add(worker);
+				worker.start();
+			}
+			start.countDown();
+			Thread.sleep(warmupSeconds * 1000L);
+			measuring = true;
+			long begin = System.nanoTime();
+			Thread.sleep(seconds * 1000L);
+			measuring = false;
+			double elapsed = (System.nanoTime() - begin) / 1e9;
+			stopped = true;
+			for (Thread worker : workers) worker.join();
+			return report(simulated, elapsed);
+		} finally {
+			helper.tearDown();
+		}
+	}
+	
+	private void populate() {
+		List<BenchCustomer> batch = new ArrayList<BenchCustomer>(500);
+		for (long id = 1; id <= entities; id++) {
+			batch.add(BenchCustomer.sample(id));
+			if (batch.size() == 500 || id == entities) {
+				ObjectifyService.ofy().save().entities(batch).now();
+				batch.clear();
+			}
+		}
+		ObjectifyService.ofy().clear();
+	}
+	
+	private boolean report(List<Client> simulated, double elapsed) {
+		System.out.printf("%d clients, %d s warm up, %.1f s measured, %d entities, caches %s, mix %s%n", 
+				clients, warmupSeconds, elapsed, entities, cached ? "on" : "off", mix);
+		System.out.printf("%-8s %10s %10s %9s %9s %9s %12s %8s%n", 
+				"op", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "alloc KB/op", "errors");
+		Stats total = new Stats();
+		for (Operation op : Operation.values()) {
+			Stats merged = new Stats();
+			for (Client client : simulated) merged.add(client.stats.get(op));
+			if (merged.count == 0) continue;
+			print(op.name().toLowerCase(), merged, elapsed);
+			total.add(merged);
+		}
+		print("total", total, elapsed);
+		if (total.allocated >= 0) 
+			System.out.printf("Allocation rate %.1f MB/s%n", total.allocated / elapsed / (1024 * 1024));
+		// Failures and corruptions of the warm up count as well
+		System.out.printf("Failed requests %d, corrupted responses %d%n", failed.get(), corrupted.get());
+		for (String sample : samples) System.out.println("  " + sample);
+		return failed.get() == 0 && corrupted.get() == 0;
+	}
+	
+	private static void print(String name, Stats stats, double elapsed) {
+		long[] latencies = Arrays.copyOf(stats.latencies, stats.count);
+		Arrays.sort(latencies);
+		System.out.printf("%-8s %10d %10.1f %9.3f %9.3f %9.3f %12s %8d%n", name, stats.count, stats.count / elapsed, 
+				percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999), 
+				stats.allocated < 0 ? "n/a" : String.format("%.1f", stats.allocated / 1024.0 / stats.count), stats.errors);
+	}
+	
+	/** Latency in milliseconds of the given quantile of the sorted nanosecond values */
+	private static double percentile(long[] sorted, double quantile) {
+		int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+	
+	/** Allocated bytes of the current thread, -1 if the JVM doesn't count them */
+	private static long allocatedBytes() {
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	private void corrupted(String message) {
+		corrupted.incrementAndGet();
+		if (samples.size() < MAX_SAMPLES) samples.add(message);
+	}
+	
+	/** Latencies, allocated bytes and errors of an operation */
+	private static class Stats {
+		long[] latencies = new long[1024];
+		int count;
+		long allocated;
+		long errors;
+		
+		void record(long nanos, long bytes, boolean failed) {
+			if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = nanos;
+			allocated = (allocated < 0 || bytes < 0) ? -1 : allocated + bytes;
+			if (failed) errors++;
+		}
+		
+		void add(Stats other) {
+			if (count + other.count > latencies.length) 
+				latencies = Arrays.copyOf(latencies, Math.max(count + other.count, latencies.length * 2));
+			System.arraycopy(other.latencies, 0, latencies, count, other.count);
+			count += other.count;
+			allocated = (allocated < 0 || other.allocated < 0) ? -1 : allocated + other.allocated;
+			errors += other.errors;
+		}
+	}
+	
+	/** A request with the expectations of its response */
+	private static class Call {
+		final Operation op;
+		final SimulatedExchange exchange;
+		long id;
+		String marker;
+		String surname;
+		Set<String> fields;
+		
+		Call(Operation op, SimulatedExchange exchange) {
+			this.op = op;
+			this.exchange = exchange;
+		}
+	}
+	
+	/** 
+	 * A simulated client, it reads all objects but only writes the objects of its own identifier 
+	 * range, so it knows their current state
+	 */
+	private class Client implements Runnable {
+		
+		final int index;
+		final ApiProxy.Environment environment;
+		final CountDownLatch start;
+		final Random random;
+		final Map<Operation,Stats> stats = new EnumMap<Operation,Stats>(Operation.class);
+		final List<Long> own = new ArrayList<Long>();
+		final Map<Long,String> markers = new HashMap<Long,String>();
+		long nextId;
+		long sequence;
+		
+		Client(int index, ApiProxy.Environment environment, CountDownLatch start) {
+			this.index = index;
+			this.environment = environment;
+			this.start = start;
+			random = new Random(index);
+			nextId = (index + 1) * CLIENT_RANGE;
+			for (Operation op : Operation.values()) stats.put(op, new Stats());
+		}
+		
+		public void run() {
+			ApiProxy.setEnvironmentForCurrentThread(environment);
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			while (!stopped) {
+				Call call = prepare(pick());
+				boolean measured = measuring;
+				long allocated = allocatedBytes();
+				long begin = System.nanoTime();
+				boolean failed = false;
+				try {
+					servlet.service(call.exchange.request(), call.exchange.response());
+				} catch (Exception e) {
+					failed = true;
+					failure(call, e.toString());
+				}
+				long nanos = System.nanoTime() - begin;
+				long bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+				if (!failed && call.exchange.getStatus() >= 400) {
+					failed = true;
+					failure(call, "status " + call.exchange.getStatus() + " " + call.exchange.getErrorMessage());
+				}
+				if (!failed) {
+					try {
+						verify(call);
+					} catch (RuntimeException e) {
+						corrupted(call, e.toString());
+					}
+				}
+				if (measured) stats.get(call.op).record(nanos, bytes, failed);
+				// Ends the Objectify session like the ObjectifyFilter at the end of a request
+				ObjectifyService.ofy().clear();
+			}
+		}
+		
+		private Operation pick() {
+			int value = random.nextInt(totalWeight);
+			for (Entry<Operation,Integer> entry : weights.entrySet()) {
+				value -= entry.getValue();
+				if (value < 0) return entry.getKey();
+			}
+			throw new IllegalStateException();
+		}
+		
+		private Call prepare(Operation op) {
+			if ((op == Operation.PUT || op == Operation.DELETE) && own.isEmpty()) op = Operation.POST;
+			Call call;
+			switch (op) {
+			case GET:
+				boolean mine = !own.isEmpty() && random.nextInt(4) == 0;
+				long id = mine ? own.get(random.nextInt(own.size())) : 1 + random.nextInt(entities);
+				call = new Call(op, new SimulatedExchange("GET", "/" + id, null));
+				call.id = id;
+				call.marker = mine ? markers.get(id) : null;
+				return call;
+			case LIST:
+				call = new Call(op, new SimulatedExchange("GET", "/", null).parameter("limit", String.valueOf(PAGE_SIZE)));
+				if (random.nextBoolean()) {
+					call.exchange.parameter("fields", "name,email");
+					call.fields = new HashSet<String>(Arrays.asList("name", "email"));
+				}
+				return call;
+			case FILTER:
+				call = new Call(op, new SimulatedExchange("GET", "/", null).parameter("limit", String.valueOf(PAGE_SIZE)));
+				call.surname = "Surname" + random.nextInt(10);
+				call.exchange.parameter("filter", "surname:" + call.surname);
+				return call;
+			case POST:
+				return write(op, nextId++);
+			case PUT:
+				return write(op, own.get(random.nextInt(own.size())));
+			case DELETE:
+				int position = random.nextInt(own.size());
+				call = new Call(op, new SimulatedExchange("DELETE", "/" + own.get(position), null));
+				call.id = own.remove(position);
+				markers.remove(call.id);
+				return call;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+		
+		private Call write(Operation op, long id) {
+			BenchCustomer customer = BenchCustomer.sample(id);
+			customer.location = "c" + index + ":" + (sequence++);
+			Call call = new Call(op, new SimulatedExchange(op.name(), "/", gson.toJson(customer)));
+			call.id = id;
+			call.marker = customer.location;
+			if (op == Operation.POST) own.add(id);
+			markers.put(id, customer.location);
+			return call;
+		}
+		
+		private void verify(Call call) {
+			String body = call.exchange.getResponseBody();
+			if (call.op == Operation.DELETE) return;
+			JsonElement response;
+			try {
+				response = new JsonParser().parse(body);
+			} catch (JsonParseException e) {
+				corrupted(call, "invalid JSON " + e.getMessage());
+				return;
+			}
+			if (call.op == Operation.LIST || call.op == Operation.FILTER) {
+				if (!response.isJsonArray()) {
+					corrupted(call, "not an array " + body);
+					return;
+				}
+				JsonArray page = response.getAsJsonArray();
+				for (JsonElement element : page) {
+					JsonObject object = element.getAsJsonObject();
+					if (!object.has("name")) {
+						// The meta record closing the page
+						if (object.entrySet().size() > (object.has("_cursor") ? 1 : 0)) corrupted(call, "invalid meta record " + object);
+						continue;
+					}
+					verifyObject(call, object);
+					if (call.surname != null && !call.surname.equals(string(object, "surname"))) 
+						corrupted(call, "surname doesn't match the filter " + object);
+					if (call.fields != null && !call.fields.containsAll(keys(object))) 
+						corrupted(call, "fields beyond the selection " + object);
+				}
+			} else {
+				JsonObject object = response.getAsJsonObject();
+				verifyObject(call, object);
+				if (!String.valueOf(call.id).equals(string(object, "_id"))) 
+					corrupted(call, "object of another identifier " + object);
+				if (call.marker != null && !call.marker.equals(string(object, "location"))) 
+					corrupted(call, "expected location " + call.marker + " " + object);
+			}
+		}
+		
+		/** The attributes of an object derive from its identifier, only its owner changes the location */
+		private void verifyObject(Call call, JsonObject object) {
+			String name = string(object, "name");
+			long id;
+			try {
+				id = Long.parseLong(name.substring("Name".length()));
+			} catch (RuntimeException e) {
+				corrupted(call, "invalid name " + object);
+				return;
+			}
+			BenchCustomer expected = BenchCustomer.sample(id);
+			String location = string(object, "location");
+			String owner = id < CLIENT_RANGE ? null : "c" + (id / CLIENT_RANGE - 1) + ":";
+			if ((object.has("_id") && !String.valueOf(id).equals(string(object, "_id")))
+					|| (object.has("email") && !expected.email.equals(string(object, "email")))
+					|| (object.has("surname") && !expected.surname.equals(string(object, "surname")))
+					|| (location != null && !location.equals(expected.location) && (owner == null || !location.startsWith(owner))))
+				corrupted(call, "inconsistent object " + object);
+		}
+		
+		private void failure(Call call, String message) {
+			LoadTest.this.failed.incrementAndGet();
+			if (samples.size() < MAX_SAMPLES) samples.add(describe(call) + ": " + message);
+		}
+		
+		private void corrupted(Call call, String message) {
+			LoadTest.this.corrupted(describe(call) + ": " + message);
+		}
+		
+		private String describe(Call call) {
+			return "client " + index + " " + call.op + " " + call.exchange.request();
+		}
+	}
+	
+	private static String string(JsonObject object, String name) {
+		JsonElement value = object.get(name);
+		return value == null || value.isJsonNull() ? null : value.getAsString();
+	}
+	
+	private static Set<String> keys(JsonObject object) {
+		Set<String> keys = new HashSet<String>();
+		for (Entry<String,JsonElement> entry : object.entrySet()) keys.add(entry.getKey());
+		return keys;
+	}
+}
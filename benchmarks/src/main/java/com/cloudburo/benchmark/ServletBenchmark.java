@@ -0,0 +1,107 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+
+/** 
+ * A page of the collection and a single object read through <code>service()</code> against the local 
+ * Datastore, including query, projection and serialization. Every invocation uses a fresh 
+ * {@link SimulatedExchange}, mocks would record the invocations of the whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletBenchmark {
+	
+	private static final int ENTITIES = 100;
+	
+	/** The <code>fields</code> parameter, empty for the full objects */
+	@Param({ "", "name,surname,email" })
+	public String fields;
+	
+	@Param({ "20" })
+	public int limit;
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	
+	private BenchCustomerServlet servlet;
+	private String selection;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		helper.setUp();
+		servlet = new BenchCustomerServlet();
+		servlet.init();
+		List<BenchCustomer> customers = new ArrayList<BenchCustomer>(ENTITIES);
+		for (long id = 1; id <= ENTITIES; id++) customers.add(BenchCustomer.sample(id));
+		ObjectifyService.ofy().save().entities(customers).now();
+		ObjectifyService.ofy().clear();
+		
+		selection = fields.isEmpty() ? null : fields;
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		helper.tearDown();
+	}
+	
+	@Benchmark
+	public SimulatedExchange getCollection() throws Exception {
+		SimulatedExchange exchange = new SimulatedExchange("GET", "/", null)
+				.parameter("fields", selection).parameter("limit", String.valueOf(limit));
+		return execute(exchange);
+	}
+	
+	@Benchmark
+	public SimulatedExchange getObject() throws Exception {
+		return execute(new SimulatedExchange("GET", "/" + (ENTITIES / 2), null).parameter("fields", selection));
+	}
+	
+	private SimulatedExchange execute(SimulatedExchange exchange) throws Exception {
+		servlet.service(exchange.request(), exchange.response());
+		// Ends the Objectify session like the ObjectifyFilter, objects are read from the Datastore again
+		ObjectifyService.ofy().clear();
+		if (exchange.getStatus() != 200) throw new IllegalStateException("Status " + exchange.getStatus());
+		return exchange;
+	}
+}
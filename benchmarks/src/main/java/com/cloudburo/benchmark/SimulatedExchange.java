@@ -0,0 +1,183 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A request and its response outside a servlet container. Both are dynamic proxies implementing 
+ * the few methods the servlet uses, all other methods return <code>null</code>, <code>0</code> 
+ * or <code>false</code>. Unlike mocks they don't record invocations, so they can be used by 
+ * many threads for a long run.
+ */
+class SimulatedExchange {
+	
+	private final String method;
+	private final String pathInfo;
+	private final Map<String,String> parameters = new HashMap<String,String>();
+	private final Map<String,String> requestHeaders = new HashMap<String,String>();
+	private final String body;
+	private BufferedReader reader;
+	
+	private int status = HttpServletResponse.SC_OK;
+	private String errorMessage;
+	private final Map<String,String> responseHeaders = new HashMap<String,String>();
+	private final StringWriter writerOutput = new StringWriter(4096);
+	private final PrintWriter writer = new PrintWriter(writerOutput);
+	private final ByteArrayOutputStream streamOutput = new ByteArrayOutputStream();
+	private ServletOutputStream stream;
+	
+	SimulatedExchange(String method, String pathInfo, String body) {
+		this.method = method;
+		this.pathInfo = pathInfo;
+		this.body = body;
+	}
+	
+	SimulatedExchange parameter(String name, String value) {
+		if (value != null) parameters.put(name, value);
+		return this;
+	}
+	
+	SimulatedExchange header(String name, String value) {
+		if (value != null) requestHeaders.put(name, value);
+		return this;
+	}
+	
+	HttpServletRequest request() {
+		return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if (name.equals("getMethod")) return method;
+				if (name.equals("getPathInfo")) return pathInfo;
+				if (name.equals("getRequestURI")) return "/bench" + pathInfo;
+				if (name.equals("getParameter")) return parameters.get(args[0]);
+				if (name.equals("getHeader")) return requestHeaders.get(args[0]);
+				if (name.equals("getQueryString")) return queryString();
+				if (name.equals("getCharacterEncoding")) return "UTF-8";
+				if (name.equals("getReader")) return getReader();
+				if (name.equals("toString")) return method + " " + pathInfo + (parameters.isEmpty() ? "" : "?" + queryString());
+				return defaultValue(m);
+			}
+		});
+	}
+	
+	HttpServletResponse response() {
+		return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if (name.equals("getWriter")) return writer;
+				if (name.equals("getOutputStream")) return getOutputStream();
+				if (name.equals("setStatus")) {
+					status = (Integer) args[0];
+				} else if (name.equals("sendError")) {
+					status = (Integer) args[0];
+					errorMessage = args.length > 1 ? (String) args[1] : null;
+				} else if (name.equals("setHeader") || name.equals("addHeader")) {
+					responseHeaders.put((String) args[0], (String) args[1]);
+				} else if (name.equals("containsHeader")) {
+					return responseHeaders.containsKey(args[0]);
+				} else if (name.equals("getCharacterEncoding")) {
+					return "UTF-8";
+				} else if (name.equals("toString")) {
+					return "Response " + status;
+				}
+				return defaultValue(m);
+			}
+		});
+	}
+	
+	int getStatus() {
+		return status;
+	}
+	
+	String getErrorMessage() {
+		return errorMessage;
+	}
+	
+	String getResponseHeader(String name) {
+		return responseHeaders.get(name);
+	}
+	
+	/** The response body, written either to the writer or to the output stream */
+	String getResponseBody() {
+		writer.flush();
+		if (streamOutput.size() == 0) return writerOutput.toString();
+		try {
+			return streamOutput.toString("UTF-8") + writerOutput.toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/** The same reader for all calls, the servlet peeks at the body before decoding it */
+	private BufferedReader getReader() {
+		if (reader == null) reader = new BufferedReader(new StringReader(body == null ? "" : body));
+		return reader;
+	}
+	
+	private ServletOutputStream getOutputStream() {
+		if (stream == null) {
+			stream = new ServletOutputStream() {
+				public void write(int b) throws IOException {
+					streamOutput.write(b);
+				}
+				public void write(byte[] b, int off, int len) throws IOException {
+					streamOutput.write(b, off, len);
+				}
+			};
+		}
+		return stream;
+	}
+	
+	private String queryString() {
+		if (parameters.isEmpty()) return null;
+		StringBuilder query = new StringBuilder();
+		for (Map.Entry<String,String> entry : parameters.entrySet()) {
+			if (query.length() > 0) query.append('&');
+			query.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return query.toString();
+	}
+	
+	private static Object defaultValue(Method m) {
+		Class<?> type = m.getReturnType();
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == long.class) return Long.valueOf(0);
+		if (type == int.class) return Integer.valueOf(0);
+		return null;
+	}
+}
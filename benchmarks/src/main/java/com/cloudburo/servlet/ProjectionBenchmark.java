@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudburo.benchmark.BenchCustomer;
+import com.cloudburo.benchmark.BenchCustomerServlet;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/** 
+ * The <code>fields</code> selection of loaded objects (formerly <code>getPartialResponse</code>), 
+ * compiled once per field list as the servlet does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark {
+	
+	@Param({ "name", "_id,name,surname,email", "name,date,date1,date2,referrer" })
+	public String fields;
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	
+	private ProjectionPlan plan;
+	private BenchCustomer customer;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		helper.setUp();
+		new BenchCustomerServlet();
+		Gson gson = new GsonWrapper().getGson();
+		plan = ProjectionPlan.compile(BenchCustomer.class, fields, gson);
+		customer = BenchCustomer.sample(4711);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		helper.tearDown();
+	}
+	
+	@Benchmark
+	public StringWriter write() throws IOException {
+		StringWriter output = new StringWriter(256);
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(output);
+		plan.write(out, customer);
+		out.flush();
+		return output;
+	}
+	
+	@Benchmark
+	public ProjectionPlan compile() {
+		return ProjectionPlan.compile(BenchCustomer.class, fields, new GsonWrapper().getGson());
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cloudburo.servlet.ServletMetrics.Phase;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Result;
+
+/**
+ * Deletes a stream of keys with asynchronous <code>delete().keys(...)</code> calls in batches of 
+ * bounded size, at most <code>maxInFlight</code> batches are pending at the same time. For every 
+ * key a result record <code>{"_id":12,"status":"ok"}</code> or <code>{"_id":12,"status":"error","message":"..."}</code> 
+ * is written in input order.
+ */
+class BatchDeleter {
+	
+	private static final Logger logger = Logger.getLogger(BatchDeleter.class.getCanonicalName());
+	
+	/** Maximum number of keys of a single Datastore batch delete */
+	static final int MAX_BATCH_SIZE = 500;
+	
+	/** Notified for every deleted key, e.g. to invalidate caches */
+	interface Listener {
+		void deleted(Key<?> key);
+	}
+	
+	private static class Batch {
+		final List<Key<?>> keys;
+		Result<Void> result;
+		RuntimeException error;
+		
+		Batch(List<Key<?>> keys) {
+			this.keys = keys;
+		}
+	}
+	
+	private final Objectify ofy;
+	private final int batchSize;
+	private final int maxInFlight;
+	private final JsonWriter out;
+	private final Listener listener;
+	private final ArrayDeque<Batch> inFlight = new ArrayDeque<Batch>();
+	private List<Key<?>> current = new ArrayList<Key<?>>();
+	private long deleted;
+	private long failed;
+	
+	BatchDeleter(Objectify ofy, int batchSize, int maxInFlight, JsonWriter out, Listener listener) {
+		this.ofy = ofy;
+		this.batchSize = Math.min(Math.max(batchSize, 1), MAX_BATCH_SIZE);
+		this.maxInFlight = Math.max(maxInFlight, 1);
+		this.out = out;
+		this.listener = listener;
+	}
+	
+	void add(Key<?> key) throws IOException {
+		current.add(key);
+		if (current.size() >= batchSize) submit();
+	}
+	
+	/** Deletes the remaining keys and waits until all batches are completed */
+	void finish() throws IOException {
+		submit();
+		while (!inFlight.isEmpty()) complete(inFlight.removeFirst());
+		out.flush();
+	}
+	
+	long getDeletedCount() {
+		return deleted;
+	}
+	
+	long getFailedCount() {
+		return failed;
+	}
+	
+	private void submit() throws IOException {
+		if (current.isEmpty()) return;
+		Batch batch = new Batch(current);
+		current = new ArrayList<Key<?>>();
+		RequestTimer timer = RequestTimer.current();
+		Phase previous = timer.enter(Phase.DATASTORE);
+		try {
+			batch.result = ofy.delete().keys(batch.keys);
+			timer.written(batch.keys.size());
+		} catch (RuntimeException e) {
+			batch.error = e;
+		}
+		timer.enter(previous);
+		inFlight.addLast(batch);
+		while (inFlight.size() > maxInFlight) complete(inFlight.removeFirst());
+	}
+	
+	private void complete(Batch batch) throws IOException {
+		RequestTimer timer = RequestTimer.current();
+		Phase previous = timer.enter(Phase.DATASTORE);
+		if (batch.error == null) {
+			try {
+				batch.result.now();
+			} catch (RuntimeException e) {
+				batch.error = e;
+			}
+		}
+		timer.enter(previous);
+		if (batch.error != null) 
+			logger.log(Level.WARNING, "Batch delete failed: {0}", batch.error.getMessage());
+		for (Key<?> key : batch.keys) {
+			out.beginObject();
+			BatchSaver.writeId(out, key);
+			if (batch.error == null) {
+				out.name("status").value("ok");
+				if (listener != null) listener.deleted(key);
+				deleted++;
+			} else {
+				out.name("status").value("error");
+				out.name("message").value(String.valueOf(batch.error.getMessage()));
+				failed++;
+			}
+			out.endObject();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cloudburo.servlet.ServletMetrics.Phase;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Result;
+
+/**
+ * Saves a stream of objects with <code>save().entities(...)</code> in batches of bounded size, 
+ * at most <code>maxInFlight</code> batches are pending at the same time. For every item a result 
+ * record is written in input order, either <code>{"index":0,"_id":12,"status":"ok"}</code> or 
+ * <code>{"index":1,"status":"error","message":"..."}</code>. A failing batch only fails its own items.
+ * For inputs of unbounded size only the failed items are reported and the session cache of 
+ * <code>ofy</code> is cleared after every batch, so that memory stays bounded by the batches in flight.
+ */
+class BatchSaver {
+	
+	private static final Logger logger = Logger.getLogger(BatchSaver.class.getCanonicalName());
+	
+	/** Maximum number of entities of a single Datastore batch put */
+	static final int MAX_BATCH_SIZE = 500;
+	
+	/** Notified for every saved object, e.g. to refresh caches */
+	interface Listener {
+		void saved(Key<?> key, Object entity);
+	}
+	
+	private static class Item {
+		final long index;
+		final Object entity;
+		final String error;
+		
+		Item(long index, Object entity, String error) {
+			this.index = index;
+			this.entity = entity;
+			this.error = error;
+		}
+	}
+	
+	private static class Batch {
+		final List<Item> items;
+		Result<?> result;
+		
+		Batch(List<Item> items) {
+			this.items = items;
+		}
+	}
+	
+	private final Objectify ofy;
+	private final int batchSize;
+	private final int maxInFlight;
+	private final JsonWriter out;
+	private final Listener listener;
+	private final boolean unbounded;
+	private final ArrayDeque<Batch> inFlight = new ArrayDeque<Batch>();
+	private List<Item> current = new ArrayList<Item>();
+	private long saved;
+	private long failed;
+	
+	BatchSaver(Objectify ofy, int batchSize, int maxInFlight, JsonWriter out, Listener listener) {
+		this(ofy, batchSize, maxInFlight, out, listener, false);
+	}
+	
+	BatchSaver(Objectify ofy, int batchSize, int maxInFlight, JsonWriter out, Listener listener, boolean unbounded) {
+		this.ofy = ofy;
+		this.batchSize = Math.min(Math.max(batchSize, 1), MAX_BATCH_SIZE);
+		this.maxInFlight = Math.max(maxInFlight, 1);
+		this.out = out;
+		this.listener = listener;
+		this.unbounded = unbounded;
+	}
+	
+	void add(long index, Object entity) throws IOException {
+		current.add(new Item(index, entity, null));
+		if (current.size() >= batchSize) submit();
+	}
+	
+	/** Records an item which couldn't be decoded, its result is written in order with the others */
+	void fail(long index, String message) throws IOException {
+		current.add(new Item(index, null, message));
+		if (current.size() >= batchSize) submit();
+	}
+	
+	/** Saves the remaining objects and waits until all batches are completed */
+	void finish() throws IOException {
+		submit();
+		while (!inFlight.isEmpty()) complete(inFlight.removeFirst());
+		out.flush();
+	}
+	
+	long getSavedCount() {
+		return saved;
+	}
+	
+	long getFailedCount() {
+		return failed;
+	}
+	
+	private void submit() throws IOException {
+		if (current.isEmpty()) return;
+		Batch batch = new Batch(current);
+		current = new ArrayList<Item>();
+		List<Object> entities = new ArrayList<Object>(batch.items.size());
+		for (Item item : batch.items) 
+			if (item.entity != null) entities.add(item.entity);
+		if (!entities.isEmpty()) {
+			RequestTimer timer = RequestTimer.current();
+			Phase previous = timer.enter(Phase.DATASTORE);
+			try {
+				batch.result = ofy.save().entities(entities);
+				timer.written(entities.size());
+			} catch (RuntimeException e) {
+				batch.result = new FailedResult(e);
+			}
+			timer.enter(previous);
+		}
+		inFlight.addLast(batch);
+		while (inFlight.size() > maxInFlight) complete(inFlight.removeFirst());
+	}
+	
+	private void complete(Batch batch) throws IOException {
+		String batchError = null;
+		RequestTimer timer = RequestTimer.current();
+		Phase previous = timer.enter(Phase.DATASTORE);
+		if (batch.result != null) {
+			try {
+				batch.result.now();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Batch save failed: {0}", e.getMessage());
+				batchError = String.valueOf(e.getMessage());
+			}
+		}
+		timer.enter(previous);
+		for (Item item : batch.items) {
+			String error = item.entity == null ? item.error : batchError;
+			if (error == null) {
+				Key<?> key = Key.create(item.entity);
+				if (!unbounded) {
+					out.beginObject();
+					out.name("index").value(item.index);
+					writeId(out, key);
+					out.name("status").value("ok");
+					out.endObject();
+				}
+				if (listener != null) listener.saved(key, item.entity);
+				saved++;
+			} else {
+				out.beginObject();
+				out.name("index").value(item.index);
+				out.name("status").value("error");
+				out.name("message").value(error);
+				out.endObject();
+				failed++;
+			}
+		}
+		if (unbounded) ofy.clear();
+	}
+	
+	static void writeId(JsonWriter out, Key<?> key) throws IOException {
+		out.name("_id");
+		if (key.getName() != null) 
+			out.value(key.getName());
+		else 
+			out.value(key.getId());
+	}
+	
+	/** Result of a batch whose save already failed when it was issued */
+	private static class FailedResult implements Result<Map<?,?>> {
+		private final RuntimeException exception;
+		
+		FailedResult(RuntimeException exception) {
+			this.exception = exception;
+		}
+		
+		public Map<?,?> now() {
+			throw exception;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Strong entity tags of response bodies, the quoted MD5 digest of the bytes. Equal bodies have 
+ * equal tags on every instance, unlike tags derived from the instance local page cache generation.
+ */
+final class ETag {
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private ETag() {
+	}
+	
+	static String of(byte[] body) {
+		return format(md5().digest(body));
+	}
+	
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// Can't happen, every Java platform supports MD5
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String format(byte[] digest) {
+		char[] tag = new char[digest.length * 2 + 2];
+		tag[0] = '"';
+		for (int i = 0; i < digest.length; i++) {
+			tag[2 * i + 1] = HEX[(digest[i] >> 4) & 0xf];
+			tag[2 * i + 2] = HEX[digest[i] & 0xf];
+		}
+		tag[tag.length - 1] = '"';
+		return new String(tag);
+	}
+	
+	/** 
+	 * Whether the <code>If-None-Match</code> header lists the tag, compared weakly as required 
+	 * for this header, or is <code>*</code>
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Passes the body through to <code>out</code> and digests its UTF-8 encoding on the way, so 
+	 * that the tag of {@link #of} is computed without buffering the body. Flushing is left to the 
+	 * caller, a flushed response is committed and can't get the tag as header anymore.
+	 */
+	static final class DigestWriter extends Writer {
+		
+		private final Writer out;
+		private final MessageDigest md5 = md5();
+		private char highSurrogate;
+		
+		DigestWriter(Writer out) {
+			this.out = out;
+		}
+		
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			for (int i = off; i < off + len; i++) update(cbuf[i]);
+		}
+		
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			for (int i = off; i < off + len; i++) update(str.charAt(i));
+		}
+		
+		public void write(int c) throws IOException {
+			out.write(c);
+			update((char) c);
+		}
+		
+		private void update(char c) {
+			if (highSurrogate != 0) {
+				char high = highSurrogate;
+				highSurrogate = 0;
+				if (Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(high, c);
+					md5.update((byte) (0xf0 | (codePoint >> 18)));
+					md5.update((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+					md5.update((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+					md5.update((byte) (0x80 | (codePoint & 0x3f)));
+					return;
+				}
+				// Unpaired surrogates are encoded as '?', like String.getBytes does
+				md5.update((byte) '?');
+			}
+			if (c < 0x80) {
+				md5.update((byte) c);
+			} else if (c < 0x800) {
+				md5.update((byte) (0xc0 | (c >> 6)));
+				md5.update((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c)) {
+				highSurrogate = c;
+			} else if (Character.isLowSurrogate(c)) {
+				md5.update((byte) '?');
+			} else {
+				md5.update((byte) (0xe0 | (c >> 12)));
+				md5.update((byte) (0x80 | ((c >> 6) & 0x3f)));
+				md5.update((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+		
+		/** The tag of the body written so far */
+		String etag() {
+			if (highSurrogate != 0) {
+				highSurrogate = 0;
+				md5.update((byte) '?');
+			}
+			return format(md5.digest());
+		}
+		
+		public void flush() {
+		}
+		
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Read through cache for single objects, consulted by <code>RestAPIServlet</code> before an 
+ * object is loaded from the Datastore. The servlet refreshes the entry on <code>PUT</code> and 
+ * <code>POST</code> and invalidates it on <code>DELETE</code>. Implementations must be thread safe.
+ * 
+ * @see LocalEntityCache
+ * @see MemcacheEntityCache
+ * @see TieredEntityCache
+ */
+public interface EntityCache {
+	
+	/** The cached object or <code>null</code> if the key isn't cached */
+	Object get(Key<?> key);
+	
+	void put(Key<?> key, Object entity);
+	
+	void invalidate(Key<?> key);
+	
+	CacheStatistics getStatistics();
+}
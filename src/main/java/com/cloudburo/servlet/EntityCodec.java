@@ -0,0 +1,82 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Base class of the streaming type adapters generated by {@link EntityCodecProcessor} for 
+ * persistency classes. A generated codec reads and writes the fields directly, in the same 
+ * order and with the same adapters as the reflective Gson adapter, and exposes the field values 
+ * by index for the partial response (see {@link ProjectionPlan}).
+ * <p>
+ * Codecs are picked up by {@link EntityCodecFactory}, classes without a generated codec 
+ * are serialized by reflection as before.
+ */
+public abstract class EntityCodec<T> extends TypeAdapter<T> {
+	
+	private final Gson gson;
+	private final String[] fieldNames;
+	private final Map<String,Integer> fieldIndexes;
+	
+	protected EntityCodec(Gson gson, String... fieldNames) {
+		this.gson = gson;
+		this.fieldNames = fieldNames;
+		fieldIndexes = new HashMap<String,Integer>(fieldNames.length * 2);
+		for (int i=0; i<fieldNames.length; i++) fieldIndexes.put(fieldNames[i], i);
+	}
+	
+	/** Index of the field with the JSON name <code>name</code>, or -1 if there is none */
+	public final int fieldIndex(String name) {
+		Integer index = fieldIndexes.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+	
+	public final String fieldName(int index) {
+		return fieldNames[index];
+	}
+	
+	/** Value of the field <code>index</code>, primitives are boxed */
+	public abstract Object getField(T value, int index);
+	
+	/** 
+	 * Writes a value of a field declared with the (non generic, non final) class <code>declared</code>, 
+	 * choosing the adapter for the runtime type like Gson does for reflective fields
+	 */
+	@SuppressWarnings("unchecked")
+	protected final <V> void writeRuntime(JsonWriter out, TypeAdapter<V> adapter, Class<?> declared, V value) 
+			throws IOException {
+		if (value == null || value.getClass() == declared) {
+			adapter.write(out, value);
+			return;
+		}
+		TypeAdapter<V> runtimeAdapter = (TypeAdapter<V>) gson.getAdapter(value.getClass());
+		if (runtimeAdapter instanceof ReflectiveTypeAdapterFactory.Adapter 
+				&& !(adapter instanceof ReflectiveTypeAdapterFactory.Adapter))
+			adapter.write(out, value);
+		else
+			runtimeAdapter.write(out, value);
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.googlecode.objectify.annotation.Entity;
+
+/**
+ * Registers the codecs generated at compile time for <code>@Entity</code> classes. The codec of 
+ * a class <code>a.b.Customer</code> is <code>a.b.Customer_JsonCodec</code>, the lookup is done 
+ * once per class, classes without codec are left to the reflective Gson adapter.
+ */
+class EntityCodecFactory implements TypeAdapterFactory {
+	
+	static final String CODEC_SUFFIX = "_JsonCodec";
+	
+	// Marks a class without generated codec
+	private static final Constructor<?> NONE = EntityCodecFactory.class.getDeclaredConstructors()[0];
+	
+	private static final ConcurrentHashMap<Class<?>,Constructor<?>> codecs = new ConcurrentHashMap<Class<?>,Constructor<?>>();
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+		Class<? super T> raw = type.getRawType();
+		if (type.getType() != raw || !raw.isAnnotationPresent(Entity.class)) return null;
+		Constructor<?> constructor = codecs.get(raw);
+		if (constructor == null) {
+			constructor = lookup(raw);
+			codecs.put(raw, constructor);
+		}
+		if (constructor == NONE) return null;
+		try {
+			return (TypeAdapter<T>) constructor.newInstance(gson);
+		} catch (Exception e) {
+			throw new IllegalStateException("Codec instantiation failed for "+raw.getName(), e);
+		}
+	}
+	
+	private static Constructor<?> lookup(Class<?> clazz) {
+		try {
+			Class<?> codec = Class.forName(clazz.getName() + CODEC_SUFFIX, true, clazz.getClassLoader());
+			if (!EntityCodec.class.isAssignableFrom(codec)) return NONE;
+			return codec.getConstructor(Gson.class);
+		} catch (ClassNotFoundException e) {
+			return NONE;
+		} catch (NoSuchMethodException e) {
+			return NONE;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor generating an {@link EntityCodec} for each Objectify <code>@Entity</code> 
+ * class, registered by <code>META-INF/services</code> so it runs whenever the library is on the 
+ * compile class path. The codec writes the fields in the order of the reflective Gson adapter 
+ * (declared fields first, then the ones of the super classes) and uses the same type adapters, 
+ * the JSON output is therefore identical.
+ * <p>
+ * Classes the generated code can't access (private fields or constructor, generic classes, 
+ * Gson annotations, ...) are skipped with a note and keep being serialized by reflection.
+ */
+@SupportedAnnotationTypes("com.googlecode.objectify.annotation.Entity")
+public class EntityCodecProcessor extends AbstractProcessor {
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() != ElementKind.CLASS) continue;
+				TypeElement type = (TypeElement) element;
+				List<VariableElement> fields = new ArrayList<VariableElement>();
+				List<TypeMirror> fieldTypes = new ArrayList<TypeMirror>();
+				String reason = collectFields(type, fields, fieldTypes);
+				if (reason != null) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, 
+							"No JSON codec generated for "+type.getQualifiedName()+": "+reason, type);
+					continue;
+				}
+				try {
+					generate(type, fields, fieldTypes);
+				} catch (IOException e) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, 
+							"JSON codec generation failed: "+e.getMessage(), type);
+				}
+			}
+		}
+		// Not claimed, other processors may handle @Entity too
+		return false;
+	}
+	
+	/** Collects the serialized fields in Gson order, returns the reason if no codec can be generated */
+	private String collectFields(TypeElement type, List<VariableElement> fields, List<TypeMirror> fieldTypes) {
+		Types types = processingEnv.getTypeUtils();
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) return "abstract class";
+		if (!type.getTypeParameters().isEmpty()) return "generic class";
+		for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) return "private class";
+			if (e instanceof TypeElement && ((TypeElement) e).getNestingKind() != NestingKind.TOP_LEVEL 
+					&& !e.getModifiers().contains(Modifier.STATIC)) return "inner class";
+		}
+		boolean constructor = false;
+		for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) constructor = true;
+		if (!constructor) return "no accessible no-arg constructor";
+		
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		DeclaredType declared = (DeclaredType) type.asType();
+		Set<String> names = new HashSet<String>();
+		TypeElement current = type;
+		while (current != null && !current.getQualifiedName().contentEquals("java.lang.Object")) {
+			for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+				String name = field.getSimpleName().toString();
+				if (modifiers.contains(Modifier.PRIVATE)) return "private field "+name;
+				if (!modifiers.contains(Modifier.PUBLIC) && !processingEnv.getElementUtils().getPackageOf(current).equals(pkg)) 
+					return "inaccessible field "+name;
+				for (AnnotationMirror a : field.getAnnotationMirrors())
+					if (a.getAnnotationType().toString().startsWith("com.google.gson.annotations.")) 
+						return "Gson annotation on field "+name;
+				if (!names.add(name)) return "duplicate field "+name;
+				TypeMirror fieldType = types.asMemberOf(declared, field);
+				if (!isConcrete(fieldType)) return "unresolved type of field "+name;
+				fields.add(field);
+				fieldTypes.add(fieldType);
+			}
+			TypeMirror superclass = current.getSuperclass();
+			current = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) types.asElement(superclass) : null;
+		}
+		return null;
+	}
+	
+	private static boolean isConcrete(TypeMirror type) {
+		switch (type.getKind()) {
+		case TYPEVAR:
+		case ERROR:
+			return false;
+		case ARRAY:
+			return isConcrete(((ArrayType) type).getComponentType());
+		case WILDCARD:
+			WildcardType wildcard = (WildcardType) type;
+			return (wildcard.getExtendsBound() == null || isConcrete(wildcard.getExtendsBound())) 
+					&& (wildcard.getSuperBound() == null || isConcrete(wildcard.getSuperBound()));
+		case DECLARED:
+			for (TypeMirror arg : ((DeclaredType) type).getTypeArguments())
+				if (!isConcrete(arg)) return false;
+			return true;
+		default:
+			return true;
+		}
+	}
+	
+	private void generate(TypeElement type, List<VariableElement> fields, List<TypeMirror> fieldTypes) throws IOException {
+		Types types = processingEnv.getTypeUtils();
+		String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String codecName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + EntityCodecFactory.CODEC_SUFFIX;
+		String entity = type.getQualifiedName().toString();
+		String qualifiedCodecName = packageName.length() == 0 ? codecName : packageName + "." + codecName;
+		
+		PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedCodecName, type).openWriter());
+		try {
+			if (packageName.length() > 0) out.println("package "+packageName+";\n");
+			out.println("/** JSON codec for {@link "+entity+"}, generated by "+EntityCodecProcessor.class.getName()+", do not edit */");
+			out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+			out.println("public final class "+codecName+" extends com.cloudburo.servlet.EntityCodec<"+entity+"> {\n");
+			for (int i=0; i<fields.size(); i++)
+				out.println("\tprivate final com.google.gson.TypeAdapter<"+boxed(fieldTypes.get(i))+"> a"+i+";");
+			
+			out.println("\n\tpublic "+codecName+"(com.google.gson.Gson gson) {");
+			out.print("\t\tsuper(gson");
+			for (VariableElement field : fields) out.print(", \""+field.getSimpleName()+"\"");
+			out.println(");");
+			for (int i=0; i<fields.size(); i++) {
+				TypeMirror fieldType = fieldTypes.get(i);
+				String token = isClass(fieldType) ? types.erasure(fieldType)+".class" 
+						: "new com.google.gson.reflect.TypeToken<"+fieldType+">() {}";
+				out.println("\t\ta"+i+" = gson.getAdapter("+token+");");
+			}
+			out.println("\t}\n");
+			
+			out.println("\t@Override");
+			out.println("\tpublic void write(com.google.gson.stream.JsonWriter out, "+entity+" value) throws java.io.IOException {");
+			out.println("\t\tif (value == null) {\n\t\t\tout.nullValue();\n\t\t\treturn;\n\t\t}");
+			out.println("\t\tout.beginObject();");
+			for (int i=0; i<fields.size(); i++) {
+				String name = fields.get(i).getSimpleName().toString();
+				out.println("\t\tout.name(\""+name+"\");");
+				out.println("\t\t"+writeStatement(fieldTypes.get(i), i, "value."+name)+";");
+			}
+			out.println("\t\tout.endObject();");
+			out.println("\t}\n");
+			
+			out.println("\t@Override");
+			out.println("\tpublic "+entity+" read(com.google.gson.stream.JsonReader in) throws java.io.IOException {");
+			out.println("\t\tif (in.peek() == com.google.gson.stream.JsonToken.NULL) {\n\t\t\tin.nextNull();\n\t\t\treturn null;\n\t\t}");
+			out.println("\t\t"+entity+" value = new "+entity+"();");
+			out.println("\t\tin.beginObject();");
+			out.println("\t\twhile (in.hasNext()) {");
+			out.println("\t\t\tswitch (fieldIndex(in.nextName())) {");
+			for (int i=0; i<fields.size(); i++) {
+				String name = fields.get(i).getSimpleName().toString();
+				TypeMirror fieldType = fieldTypes.get(i);
+				if (fieldType.getKind().isPrimitive()) {
+					// Like Gson a null doesn't overwrite a primitive
+					out.println("\t\t\tcase "+i+": {\n\t\t\t\t"+boxed(fieldType)+" v = a"+i+".read(in);");
+					out.println("\t\t\t\tif (v != null) value."+name+" = v;\n\t\t\t\tbreak;\n\t\t\t}");
+				} else {
+					out.println("\t\t\tcase "+i+":\n\t\t\t\tvalue."+name+" = a"+i+".read(in);\n\t\t\t\tbreak;");
+				}
+			}
+			out.println("\t\t\tdefault:\n\t\t\t\tin.skipValue();\n\t\t\t}");
+			out.println("\t\t}");
+			out.println("\t\tin.endObject();");
+			out.println("\t\treturn value;");
+			out.println("\t}\n");
+			
+			out.println("\t@Override");
+			out.println("\tpublic Object getField("+entity+" value, int index) {");
+			out.println("\t\tswitch (index) {");
+			for (int i=0; i<fields.size(); i++)
+				out.println("\t\tcase "+i+": return value."+fields.get(i).getSimpleName()+";");
+			out.println("\t\tdefault: throw new IndexOutOfBoundsException(\"No field \"+index);");
+			out.println("\t\t}");
+			out.println("\t}");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+	
+	/** The statement writing a field value, mirroring the adapter Gson would choose */
+	private String writeStatement(TypeMirror type, int i, String value) {
+		switch (type.getKind()) {
+		case LONG:
+		case INT:
+		case SHORT:
+		case BYTE:
+		case BOOLEAN:
+			return "out.value("+value+")";
+		case DECLARED:
+			String name = processingEnv.getTypeUtils().erasure(type).toString();
+			if (name.equals("java.lang.String") || name.equals("java.lang.Long") || name.equals("java.lang.Integer") 
+					|| name.equals("java.lang.Short") || name.equals("java.lang.Byte")) 
+				return "out.value("+value+")";
+			if (isClass(type) && !processingEnv.getTypeUtils().asElement(type).getModifiers().contains(Modifier.FINAL))
+				return "writeRuntime(out, a"+i+", "+name+".class, "+value+")";
+			return "a"+i+".write(out, "+value+")";
+		case ARRAY:
+			if (isClass(type)) 
+				return "writeRuntime(out, a"+i+", "+processingEnv.getTypeUtils().erasure(type)+".class, "+value+")";
+			return "a"+i+".write(out, "+value+")";
+		default:
+			return "a"+i+".write(out, "+value+")";
+		}
+	}
+	
+	/** True if the type is a primitive, a non generic class or an array of them */
+	private static boolean isClass(TypeMirror type) {
+		switch (type.getKind()) {
+		case ARRAY:
+			return isClass(((ArrayType) type).getComponentType());
+		case DECLARED:
+			return ((DeclaredType) type).getTypeArguments().isEmpty();
+		default:
+			return type.getKind().isPrimitive();
+		}
+	}
+	
+	private String boxed(TypeMirror type) {
+		if (type.getKind().isPrimitive()) 
+			return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+		return type.toString();
+	}
+}
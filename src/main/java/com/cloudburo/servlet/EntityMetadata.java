@@ -0,0 +1,178 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Unindex;
+
+/**
+ * Persistence metadata of a class, resolved once by reflection and shared by all servlets: 
+ * the identifier field, the persisted properties with their (boxed) types, whether they are 
+ * indexed, and a converter from the string values of a query parameter to the stored type.
+ */
+final class EntityMetadata {
+	
+	private static final ConcurrentHashMap<Class<?>,EntityMetadata> registry = new ConcurrentHashMap<Class<?>,EntityMetadata>();
+	
+	static final class Property {
+		final String name;
+		final Field field;
+		final Class<?> type;
+		final boolean id;
+		final boolean indexed;
+		
+		Property(Field field, boolean id, boolean indexed) {
+			this.name = field.getName();
+			this.field = field;
+			this.type = boxed(field.getType());
+			this.id = id;
+			this.indexed = indexed;
+		}
+		
+		/** A property can be filtered if it is indexed or the identifier */
+		boolean isFilterable() {
+			return id || indexed;
+		}
+		
+		/**
+		 * Converts a query parameter value to the type stored in the Datastore, values of types 
+		 * without converter are passed as string
+		 * @throws IllegalArgumentException if the value can't be converted
+		 */
+		Object convert(String value) {
+			try {
+				if (type == String.class) return value;
+				if (type == Long.class || type == Integer.class || type == Short.class || type == Byte.class) 
+					return Long.valueOf(value);
+				if (type == Double.class || type == Float.class) return Double.valueOf(value);
+				if (type == Boolean.class) return Boolean.valueOf(value);
+				if (type == Date.class) return TemporalCodec.parseDate(value);
+				return value;
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Value '"+value+"' of the property '"+name+"' isn't a "+type.getSimpleName());
+			}
+		}
+	}
+	
+	private final Class<?> clazz;
+	private final String kind;
+	private final Property idProperty;
+	private final Map<String,Property> properties;
+	private final byte[] indexAttributesJson;
+	
+	private EntityMetadata(Class<?> clazz) {
+		this.clazz = clazz;
+		kind = Key.getKind(clazz);
+		Map<String,Property> props = new LinkedHashMap<String,Property>();
+		Property idProp = null;
+		StringBuilder indexAttributes = new StringBuilder("[");
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			boolean classIndexed = c.isAnnotationPresent(Index.class);
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.isAnnotationPresent(Ignore.class)) continue;
+				if (props.containsKey(field.getName())) continue;
+				field.setAccessible(true);
+				boolean id = field.isAnnotationPresent(Id.class);
+				boolean fieldIndexed = field.isAnnotationPresent(Index.class);
+				Property property = new Property(field, id, 
+						fieldIndexed || (classIndexed && !field.isAnnotationPresent(Unindex.class)));
+				props.put(property.name, property);
+				if (id) idProp = property;
+				// The index attributes only list the annotated fields of the class itself
+				if (c == clazz && fieldIndexed) {
+					if (indexAttributes.length() > 1) indexAttributes.append(",");
+					indexAttributes.append(field.getName());
+				}
+			}
+		}
+		idProperty = idProp;
+		properties = Collections.unmodifiableMap(props);
+		try {
+			indexAttributesJson = indexAttributes.append("]").toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	static EntityMetadata get(Class<?> clazz) {
+		EntityMetadata metadata = registry.get(clazz);
+		if (metadata == null) {
+			metadata = new EntityMetadata(clazz);
+			EntityMetadata existing = registry.putIfAbsent(clazz, metadata);
+			if (existing != null) metadata = existing;
+		}
+		return metadata;
+	}
+	
+	Class<?> getEntityClass() {
+		return clazz;
+	}
+	
+	String getKind() {
+		return kind;
+	}
+	
+	/** The <code>@Id</code> property, <code>null</code> if the class doesn't declare one */
+	Property getIdProperty() {
+		return idProperty;
+	}
+	
+	/** The persisted property <code>name</code>, <code>null</code> if there is none */
+	Property getProperty(String name) {
+		return properties.get(name);
+	}
+	
+	/** 
+	 * The response of the <code>indexAttributes</code> request, the names of the fields annotated 
+	 * with <code>@Index</code>. The array is shared and must not be modified.
+	 */
+	byte[] getIndexAttributesJson() {
+		return indexAttributesJson;
+	}
+	
+	/** The Datastore key of an identifier value given as query parameter */
+	com.google.appengine.api.datastore.Key toRawKey(String id) {
+		Object value = idProperty.convert(id);
+		return (value instanceof Long) ? KeyFactory.createKey(kind, (Long) value) : KeyFactory.createKey(kind, id);
+	}
+	
+	static Class<?> boxed(Class<?> type) {
+		if (!type.isPrimitive()) return type;
+		if (type == long.class) return Long.class;
+		if (type == int.class) return Integer.class;
+		if (type == double.class) return Double.class;
+		if (type == boolean.class) return Boolean.class;
+		if (type == float.class) return Float.class;
+		if (type == short.class) return Short.class;
+		if (type == byte.class) return Byte.class;
+		return Character.class;
+	}
+}
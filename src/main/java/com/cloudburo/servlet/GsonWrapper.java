@@ -17,6 +17,7 @@
  */
 package com.cloudburo.servlet;
 
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializationContext;
@@ -30,116 +31,169 @@ import com.googlecode.objectify.Key;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.StringTokenizer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.LocalDateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 
 public class GsonWrapper {
 	
-	private static final Logger logger = Logger.getLogger(GsonWrapper.class.getCanonicalName());
 	private GsonBuilder gsonBuilder;
 	private Gson gson;
 	
-	// DateTime format like: 2014-06-14T18:42:34.060+02:00
-	private class DateTimeTypeConverter implements JsonSerializer<DateTime>, JsonDeserializer<DateTime> {
-
-		  public JsonElement serialize(DateTime src, Type srcType, JsonSerializationContext context) {
-		    return new JsonPrimitive(src.toString());
-		  }
-		  public DateTime deserialize(JsonElement json, Type type, JsonDeserializationContext context)
-		      throws JsonParseException {
-		    return new DateTime(json.getAsString());
-		  }
-	}
-	
-	// DateTime format like: 2014-06-14T18:42:34.018 
-	private class LocalDateTimeTypeConverter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
-
-		  public JsonElement serialize(LocalDateTime src, Type srcType, JsonSerializationContext context) {
-			DateTimeFormatter fmt = ISODateTimeFormat.dateTime();
-			return new JsonPrimitive(fmt.print(src));
-		  }
-
-		  public LocalDateTime deserialize(JsonElement json, Type type, JsonDeserializationContext context)
-		      throws JsonParseException {
-		    return new LocalDateTime(json.getAsString());
-		  }
-	}
-	
-	// This will handle the ISO8601 GMT date format - 2014-06-14T16:42:33.970Z
-	private class DateTypeConverter implements JsonSerializer<Date>, JsonDeserializer<Date> {
-
-		  public JsonElement serialize(Date src, Type srcType, JsonSerializationContext context) {
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
-			DateTime dt = DateTime.parse(df.format(src));
-		    //return new JsonPrimitive(src.toString());
-			return new JsonPrimitive(dt.toString());
-		  }
-
-		  public Date deserialize(JsonElement json, Type type, JsonDeserializationContext context)
-		      throws JsonParseException {
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
-			Date dt= null;
-			try {
-			 dt = df.parse(json.getAsString());
-
-			} catch(ParseException ex) { throw new JsonParseException("util.Date conversion failed");}
-			 return dt;
-		  }
-	}
-
+	/**
+	 * Objectify key codec. A key without parent is written as its plain id or name, a key with parent as
+	 * the ancestor path followed by the id or name, e.g. <code>"Customer:4711;Order:orderA;42"</code>.
+	 * The kind of the key itself comes from the declared <code>Key&lt;T&gt;</code> type; it is resolved 
+	 * once per type and cached. Numeric path elements are decoded as ids, all others as names. 
+	 * Separators in names are percent encoded, as is the first character of a name which looks 
+	 * numeric, e.g. <code>"%3123"</code> for the name <code>"123"</code>.
+	 */
 	 @SuppressWarnings("rawtypes")
 	 public static class KeyAdapterSerializer implements JsonSerializer<Key>, JsonDeserializer<Key>  {
 	   
+	   private static final char PATH_SEPARATOR = ';';
+	   private static final char KIND_SEPARATOR = ':';
+	   // Marks a type which doesn't resolve to an entity class, e.g. Key<?>
+	   private static final Class<?> UNRESOLVED = Void.class;
+	   
+	   private final ConcurrentHashMap<Type,Class<?>> keyClasses = new ConcurrentHashMap<Type,Class<?>>();
+	   
 	   @Override
 	   public JsonElement serialize(Key key, Type type, JsonSerializationContext serialContext) {
-	     Type[] typeParameters = ((ParameterizedType)type).getActualTypeArguments();
-	     Type idType = typeParameters[0]; // Id has only one parameterized type T
-	     logger.log(Level.INFO,"Serialize "+key+"->"+idType);
-	     if (key.getId() == 0)
-	       return new JsonPrimitive(key.getName());
-	     else
-	       return new JsonPrimitive(key.getId());
+	     com.google.appengine.api.datastore.Key raw = key.getRaw();
+	     if (raw.getParent() == null && raw.getName() == null) 
+	       return new JsonPrimitive(raw.getId());
+	     StringBuilder path = new StringBuilder(64);
+	     if (raw.getParent() != null) appendAncestors(path, raw.getParent());
+	     appendValue(path, raw);
+	     return new JsonPrimitive(path.toString());
 	   }
 	   
 	   @SuppressWarnings("unchecked")
 	   @Override
 	   public Key deserialize(JsonElement element, Type type,  JsonDeserializationContext deserialContext) throws JsonParseException {
-		StringTokenizer tok = new StringTokenizer(element.getAsString(),";");
-	    String className = ((ParameterizedType)type).getActualTypeArguments()[0].toString(); 
-	    if (className.startsWith("class ")) { className = className.substring("class ".length()); }
-	    logger.log(Level.INFO,"Deserizalize Objectify key:"+element.getAsString()+" "+className);
-	    try {
-	       Class clazz = Class.forName(className.toString());
-		 	if (tok.countTokens() > 0) 
-		 	{
-			 String parentKey = tok.nextToken();
-			 // TODO We have to include here the parent !!!
-			 return Key.create(clazz,Long.parseLong(element.getAsString()));
-		 	}
-		 	else {
-			 return Key.create(clazz,Long.parseLong(element.getAsString())); 
-		 	}
-        } catch (Exception e) {
-	    	 throw new JsonParseException("ObjectifKey conversion failed "+e.getMessage());
-	    }
-	  }		  
+		String value = element.getAsString();
+		Class clazz = resolve(type);
+		try {
+			com.google.appengine.api.datastore.Key parent = null;
+			int start = 0;
+			int end;
+			while ((end = value.indexOf(PATH_SEPARATOR, start)) >= 0) {
+				int kindEnd = value.indexOf(KIND_SEPARATOR, start);
+				// A parent without kind (former "parent;id" format) can't be resolved and is skipped 
+				if (kindEnd >= 0 && kindEnd < end) {
+					String kind = value.substring(start, kindEnd);
+					String token = value.substring(kindEnd + 1, end);
+					parent = isNumeric(token) ? KeyFactory.createKey(parent, kind, Long.parseLong(token))
+							: KeyFactory.createKey(parent, kind, decode(token));
+				}
+				start = end + 1;
+			}
+			String token = value.substring(start);
+			if (clazz == null) {
+				int kindEnd = token.indexOf(KIND_SEPARATOR);
+				if (kindEnd < 0) throw new JsonParseException("ObjectifKey conversion failed, no kind for "+value);
+				String kind = token.substring(0, kindEnd);
+				token = token.substring(kindEnd + 1);
+				return Key.create(isNumeric(token) ? KeyFactory.createKey(parent, kind, Long.parseLong(token))
+						: KeyFactory.createKey(parent, kind, decode(token)));
+			}
+			Key parentKey = parent == null ? null : Key.create(parent);
+			return isNumeric(token) ? Key.create(parentKey, clazz, Long.parseLong(token)) 
+					: Key.create(parentKey, clazz, decode(token));
+		} catch (JsonParseException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new JsonParseException("ObjectifKey conversion failed "+e.getMessage());
+		}
+	  }
+	   
+	   /** The entity class of a declared Key type, or null if the type doesn't name one */
+	   private Class<?> resolve(Type type) {
+		   Class<?> clazz = keyClasses.get(type);
+		   if (clazz == null) {
+			   clazz = UNRESOLVED;
+			   if (type instanceof ParameterizedType) {
+				   Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+				   if (arg instanceof ParameterizedType) arg = ((ParameterizedType) arg).getRawType();
+				   if (arg instanceof Class) clazz = (Class<?>) arg;
+			   }
+			   keyClasses.put(type, clazz);
+		   }
+		   return clazz == UNRESOLVED ? null : clazz;
+	   }
+	   
+	   private static void appendAncestors(StringBuilder path, com.google.appengine.api.datastore.Key raw) {
+		   if (raw.getParent() != null) appendAncestors(path, raw.getParent());
+		   path.append(raw.getKind()).append(KIND_SEPARATOR);
+		   appendValue(path, raw);
+		   path.append(PATH_SEPARATOR);
+	   }
+	   
+	   private static void appendValue(StringBuilder path, com.google.appengine.api.datastore.Key raw) {
+		   if (raw.getName() == null) {
+			   path.append(raw.getId());
+			   return;
+		   }
+		   // Separators within names are percent encoded, a numeric name would be decoded as id
+		   String name = raw.getName();
+		   boolean numeric = isNumeric(name);
+		   for (int i=0; i<name.length(); i++) {
+			   char c = name.charAt(i);
+			   if (c == PATH_SEPARATOR || c == KIND_SEPARATOR || c == '%' || (numeric && i == 0)) 
+				   path.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+				   	.append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+			   else 
+				   path.append(c);
+		   }
+	   }
+	   
+	   private static String decode(String token) {
+		   if (token.indexOf('%') < 0) return token;
+		   StringBuilder name = new StringBuilder(token.length());
+		   for (int i=0; i<token.length(); i++) {
+			   char c = token.charAt(i);
+			   if (c == '%' && i + 2 < token.length()) {
+				   name.append((char) Integer.parseInt(token.substring(i + 1, i + 3), 16));
+				   i += 2;
+			   } else {
+				   name.append(c);
+			   }
+		   }
+		   return name.toString();
+	   }
+	   
+	   private static boolean isNumeric(String token) {
+		   int len = token.length();
+		   int i = len > 1 && token.charAt(0) == '-' ? 1 : 0;
+		   if (len == i) return false;
+		   for (int j=i; j<len; j++) {
+			   char c = token.charAt(j);
+			   if (c < '0' || c > '9') return false;
+		   }
+		   if (len - i < 19) return true;
+		   try {
+			   Long.parseLong(token);
+			   return true;
+		   } catch (NumberFormatException e) {
+			   return false;
+		   }
+	   }
     }
 
     public GsonWrapper() {
     	gsonBuilder = new GsonBuilder();
-    	gsonBuilder.registerTypeAdapter(DateTime.class, new DateTimeTypeConverter());
-    	gsonBuilder.registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeConverter());
-    	gsonBuilder.registerTypeAdapter(Date.class, new DateTypeConverter());
+    	// DateTime format like: 2014-06-14T18:42:34.060+02:00
+    	gsonBuilder.registerTypeAdapter(DateTime.class, TemporalCodec.DATE_TIME_ADAPTER);
+    	// LocalDateTime format like: 2014-06-14T18:42:34.018 
+    	gsonBuilder.registerTypeAdapter(LocalDateTime.class, TemporalCodec.LOCAL_DATE_TIME_ADAPTER);
+    	// This will handle the ISO8601 GMT date format - 2014-06-14T16:42:33.970Z
+    	gsonBuilder.registerTypeAdapter(Date.class, TemporalCodec.DATE_ADAPTER);
     	gsonBuilder.registerTypeAdapter(Key.class, new KeyAdapterSerializer());
+    	// Generated codecs of the persistency classes, see EntityCodecProcessor
+    	gsonBuilder.registerTypeAdapterFactory(new EntityCodecFactory());
     	gson = gsonBuilder.create();
     }
     
@@ -0,0 +1,74 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams a JSON array of entities to the response writer as they are produced by the 
+ * query iterator, instead of collecting the page and serializing it in one go.
+ * The caller is responsible to write the trailing meta record before closing the array.
+ */
+class JsonCollectionWriter {
+	
+	private final Gson gson;
+	private final CountingWriter counter;
+	private final JsonWriter writer;
+	
+	JsonCollectionWriter(Gson gson, Writer out) throws IOException {
+		this.gson = gson;
+		counter = new CountingWriter(out);
+		writer = newJsonWriter(counter);
+		writer.beginArray();
+	}
+	
+	/** 
+	 * Creates a writer with the Gson defaults, i.e. html safe and skipping <code>null</code> 
+	 * attributes of nested objects
+	 */
+	static JsonWriter newJsonWriter(Writer out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		return writer;
+	}
+	
+	/** Underlying writer, used to emit partial (field filtered) objects into the array */
+	JsonWriter getJsonWriter() {
+		return writer;
+	}
+	
+	void writeEntity(Object entity) {
+		if (entity == null) return;
+		gson.toJson(entity, entity.getClass(), writer);
+	}
+	
+	/** Number of characters written so far, for ASCII content the number of bytes */
+	long getLength() {
+		return counter.getCount();
+	}
+	
+	void close() throws IOException {
+		writer.endArray();
+		writer.flush();
+	}
+}
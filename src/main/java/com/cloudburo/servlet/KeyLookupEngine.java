@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+/**
+ * Loads objects by identifier with direct Datastore gets, which are cheaper than a query and 
+ * strongly consistent. Large identifier sets are split into batches at the Datastore batch get 
+ * limit; all batches are issued before the first result is read, so Objectify fetches them 
+ * concurrently. The optional {@link EntityCache} is consulted before the Datastore.
+ */
+class KeyLookupEngine {
+	
+	/** Maximum number of keys of a single Datastore batch get */
+	static final int BATCH_SIZE = 1000;
+	
+	private final EntityCache cache;
+	
+	KeyLookupEngine(EntityCache cache) {
+		this.cache = cache;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Object get(Objectify ofy, Class clazz, long id) {
+		Key<?> key = Key.create(clazz, id);
+		Object entity = (cache == null) ? null : cache.get(key);
+		if (entity == null) {
+			entity = ofy.load().type(clazz).id(id).now();
+			RequestTimer.current().read(entity == null ? 0 : 1);
+			if (entity != null && cache != null) cache.put(key, entity);
+		}
+		return entity;
+	}
+	
+	/**
+	 * Returns the existing objects in the order of <code>ids</code>, missing objects and 
+	 * repeated identifiers are skipped
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	List<Object> getAll(Objectify ofy, Class clazz, Collection<Long> ids) {
+		List<Long> unique = new ArrayList<Long>(new LinkedHashSet<Long>(ids));
+		Object[] entities = new Object[unique.size()];
+		List<Long> missing = new ArrayList<Long>();
+		for (int i=0; i<entities.length; i++) {
+			if (cache != null) entities[i] = cache.get(Key.create(clazz, unique.get(i)));
+			if (entities[i] == null) missing.add(unique.get(i));
+		}
+		// Issue all batches, the maps are filled asynchronously
+		List<Map<Long,Object>> batches = new ArrayList<Map<Long,Object>>();
+		RequestTimer timer = RequestTimer.current();
+		for (int from=0; from<missing.size(); from+=BATCH_SIZE) {
+			List<Long> batch = missing.subList(from, Math.min(from+BATCH_SIZE, missing.size()));
+			batches.add(ofy.load().type(clazz).ids(batch));
+		}
+		int loaded = 0;
+		for (int i=0, next=0; i<entities.length; i++) {
+			if (entities[i] != null) continue;
+			Map<Long,Object> batch = batches.get(next++ / BATCH_SIZE);
+			entities[i] = batch.get(unique.get(i));
+			if (entities[i] == null) continue;
+			loaded++;
+			if (cache != null) cache.put(Key.create(clazz, unique.get(i)), entities[i]);
+		}
+		timer.read(batches.size(), loaded);
+		List<Object> result = new ArrayList<Object>(entities.length);
+		for (Object entity : entities) 
+			if (entity != null) result.add(entity);
+		return result;
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed buckets from 1 ms to 10 s, recorded without locks. The buckets 
+ * are read one by one, a snapshot taken while recording may be off by the concurrent requests.
+ */
+final class LatencyHistogram {
+	
+	private static final double[] BOUNDS_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+	static {
+		for (int i=0; i<BOUNDS_SECONDS.length; i++) BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	// The last bucket counts the values above the highest bound
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+	private final AtomicLong sumNanos = new AtomicLong();
+	
+	void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) i++;
+		buckets.incrementAndGet(i);
+		sumNanos.addAndGet(nanos);
+	}
+	
+	/** Appends the histogram in the Prometheus text format, <code>labels</code> without braces */
+	void writeTo(StringBuilder out, String name, String labels) {
+		long count = 0;
+		for (int i=0; i<BOUNDS_NANOS.length; i++) {
+			count += buckets.get(i);
+			out.append(name).append("_bucket{").append(labels).append(",le=\"").append(BOUNDS_SECONDS[i]).append("\"} ")
+				.append(count).append('\n');
+		}
+		count += buckets.get(BOUNDS_NANOS.length);
+		out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.get() / 1e9).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Entity cache held in the memory of the instance. The number of entries is bounded, the least 
+ * recently used entry is evicted first. As writes on other instances don't reach this cache, the 
+ * entries expire after a time to live.
+ */
+public class LocalEntityCache implements EntityCache {
+	
+	private static class Entry {
+		final Object entity;
+		final long expires;
+		
+		Entry(Object entity, long expires) {
+			this.entity = entity;
+			this.expires = expires;
+		}
+	}
+	
+	private final LruCache<Key<?>,Entry> cache;
+	private final long timeToLiveMillis;
+	private final CacheStatistics statistics = new CacheStatistics();
+	private long reportedEvictions;
+	
+	public LocalEntityCache(int maxEntries, long timeToLiveMillis) {
+		cache = new LruCache<Key<?>,Entry>(maxEntries);
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+	
+	public Object get(Key<?> key) {
+		Entry entry = cache.get(key);
+		if (entry != null && entry.expires < System.currentTimeMillis()) {
+			cache.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			statistics.miss();
+			return null;
+		}
+		statistics.hit();
+		return entry.entity;
+	}
+	
+	public void put(Key<?> key, Object entity) {
+		cache.put(key, new Entry(entity, System.currentTimeMillis() + timeToLiveMillis));
+		updateEvictions();
+	}
+	
+	public void invalidate(Key<?> key) {
+		cache.remove(key);
+	}
+	
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+	
+	private synchronized void updateEvictions() {
+		long evictions = cache.getEvictionCount();
+		statistics.evicted(evictions - reportedEvictions);
+		reportedEvictions = evictions;
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small bounded cache which evicts the least recently used entry once the maximum 
+ * number of entries is reached. All operations are synchronized, the cache is meant for 
+ * state which is shared between the requests of a servlet instance.
+ */
+class LruCache<K,V> {
+	
+	private final LinkedHashMap<K,V> map;
+	private long evictions;
+	
+	@SuppressWarnings("serial")
+	LruCache(final int maxEntries) {
+		map = new LinkedHashMap<K,V>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+				if (size() <= maxEntries) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+	
+	synchronized V get(K key) {
+		return map.get(key);
+	}
+	
+	synchronized void put(K key, V value) {
+		map.put(key, value);
+	}
+	
+	synchronized V remove(K key) {
+		return map.remove(key);
+	}
+	
+	synchronized void clear() {
+		map.clear();
+	}
+	
+	synchronized int size() {
+		return map.size();
+	}
+	
+	/** Number of entries removed because the cache was full */
+	synchronized long getEvictionCount() {
+		return evictions;
+	}
+}
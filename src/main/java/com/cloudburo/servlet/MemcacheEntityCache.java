@@ -0,0 +1,86 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.gson.Gson;
+import com.googlecode.objectify.Key;
+
+/**
+ * Entity cache stored in the App Engine memcache and therefore shared by all instances. The 
+ * entities are kept as JSON strings, so the persistency class doesn't have to be serializable.
+ * The <code>MemcacheService</code> is passed in, which allows to run it against the local 
+ * memcache stub in tests.
+ */
+public class MemcacheEntityCache implements EntityCache {
+	
+	private static final Logger logger = Logger.getLogger(MemcacheEntityCache.class.getCanonicalName());
+	
+	private final MemcacheService memcache;
+	private final Gson gson;
+	private final Class<?> clazz;
+	private final Expiration expiration;
+	private final CacheStatistics statistics = new CacheStatistics();
+	
+	public MemcacheEntityCache(MemcacheService memcache, Gson gson, Class<?> clazz, int timeToLiveSeconds) {
+		this.memcache = memcache;
+		this.gson = gson;
+		this.clazz = clazz;
+		this.expiration = Expiration.byDeltaSeconds(timeToLiveSeconds);
+	}
+	
+	public Object get(Key<?> key) {
+		Object json = null;
+		try {
+			json = memcache.get(key.getString());
+		} catch (RuntimeException e) {
+			// The memcache is a best effort service, treat failures as miss
+			logger.log(Level.WARNING, "Memcache get failed: {0}", e.getMessage());
+		}
+		if (!(json instanceof String)) {
+			statistics.miss();
+			return null;
+		}
+		statistics.hit();
+		return gson.fromJson((String) json, clazz);
+	}
+	
+	public void put(Key<?> key, Object entity) {
+		try {
+			memcache.put(key.getString(), gson.toJson(entity), expiration);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Memcache put failed: {0}", e.getMessage());
+		}
+	}
+	
+	public void invalidate(Key<?> key) {
+		try {
+			memcache.delete(key.getString());
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Memcache delete failed: {0}", e.getMessage());
+		}
+	}
+	
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of serialized collection pages held in the memory of the instance. Pages are keyed by 
+ * kind, filter, fields, cursor and page size together with the generation of the kind, which is 
+ * incremented by every write on the kind. A write therefore makes the pages cached before it 
+ * unreachable, they age out of the bounded cache. This doesn't make the cache read-your-writes: 
+ * collection queries are eventually consistent, so a page queried right after a write may not 
+ * reflect it yet and is cached under the new generation for the full time to live. Writes on 
+ * other instances don't increment the local generation at all. A cached page may therefore lag 
+ * behind the Datastore by the time to live plus the Datastore's replication delay. Every page keeps the 
+ * {@link ETag} of its bytes, so that a conditional request for a cached page needs neither a 
+ * query nor a digest.
+ */
+public class PageCache {
+	
+	private static final ConcurrentHashMap<String,AtomicLong> generations = new ConcurrentHashMap<String,AtomicLong>();
+	
+	/** A serialized page with its entity tag */
+	static class Page {
+		final byte[] bytes;
+		final String etag;
+		final long expires;
+		
+		Page(byte[] bytes, long expires) {
+			this.bytes = bytes;
+			this.etag = ETag.of(bytes);
+			this.expires = expires;
+		}
+	}
+	
+	private final LruCache<String,Page> cache;
+	private final long timeToLiveMillis;
+	private final CacheStatistics statistics = new CacheStatistics();
+	private long reportedEvictions;
+	
+	public PageCache(int maxEntries, long timeToLiveMillis) {
+		cache = new LruCache<String,Page>(maxEntries);
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+	
+	/** 
+	 * Increments the generation of <code>kind</code>, called once a write completed. Pages computed 
+	 * concurrently are stored under the previous generation and never served, pages queried after 
+	 * the increment may still miss the write, see the class comment.
+	 */
+	static void invalidate(String kind) {
+		counter(kind).incrementAndGet();
+	}
+	
+	/** 
+	 * The current generation of <code>kind</code>, to be read before the page is queried and 
+	 * used for the keys of the page
+	 */
+	static long generation(String kind) {
+		return counter(kind).get();
+	}
+	
+	static String key(String kind, long generation, int limit, String filter, String fields, String cursor) {
+		StringBuilder key = new StringBuilder(64);
+		key.append(kind).append('#').append(generation).append('#').append(limit);
+		append(key, filter == null ? null : filter.trim());
+		append(key, fields);
+		append(key, cursor);
+		return key.toString();
+	}
+	
+	/** The cached page, <code>null</code> if it isn't cached or expired */
+	Page get(String key) {
+		Page page = cache.get(key);
+		if (page != null && page.expires < System.currentTimeMillis()) {
+			cache.remove(key);
+			page = null;
+		}
+		if (page == null) {
+			statistics.miss();
+			return null;
+		}
+		statistics.hit();
+		return page;
+	}
+	
+	/** Caches the serialized page, returns it with its entity tag */
+	Page put(String key, byte[] bytes) {
+		Page page = new Page(bytes, System.currentTimeMillis() + timeToLiveMillis);
+		cache.put(key, page);
+		updateEvictions();
+		return page;
+	}
+	
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+	
+	private static AtomicLong counter(String kind) {
+		AtomicLong generation = generations.get(kind);
+		if (generation == null) {
+			generation = new AtomicLong();
+			AtomicLong existing = generations.putIfAbsent(kind, generation);
+			if (existing != null) generation = existing;
+		}
+		return generation;
+	}
+	
+	private static void append(StringBuilder key, String part) {
+		// Length prefixed, so that separators within the parts can't collide
+		if (part == null) 
+			key.append("#-");
+		else 
+			key.append('#').append(part.length()).append(':').append(part);
+	}
+	
+	private synchronized void updateEvictions() {
+		long evictions = cache.getEvictionCount();
+		statistics.evicted(evictions - reportedEvictions);
+		reportedEvictions = evictions;
+	}
+}
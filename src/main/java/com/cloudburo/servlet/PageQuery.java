@@ -0,0 +1,119 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloudburo.servlet.ServletMetrics.Phase;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+/**
+ * A running collection query, fetching one result more than the page size. The additional 
+ * result tells whether there is a next page, so a cursor is only returned if the next page 
+ * isn't empty. Results are either written as they arrive or fetched first, which allows to 
+ * check that a page which can't be continued is complete before anything is written.
+ */
+class PageQuery {
+	
+	private final QueryResultIterator<?> iterator;
+	private final ProjectionPlan plan;
+	private final boolean projected;
+	private final int limit;
+	private final int chunk;
+	private int count;
+	private boolean truncated;
+	private final RequestTimer timer = RequestTimer.current();
+	
+	/**
+	 * @param iterator query limited to <code>limit + 1</code> results
+	 * @param plan the <code>fields</code> selection, <code>null</code> for the full objects
+	 * @param projected whether the iterator returns the entities of a projection query
+	 * @param chunk the batch size of the query, a batch is a Datastore call
+	 */
+	PageQuery(QueryResultIterator<?> iterator, ProjectionPlan plan, boolean projected, int limit, int chunk) {
+		this.iterator = iterator;
+		this.plan = plan;
+		this.projected = projected;
+		this.limit = limit;
+		this.chunk = chunk;
+	}
+	
+	boolean isProjected() {
+		return projected;
+	}
+	
+	/** 
+	 * Writes the results of the page, returns their number. With a <code>byteBudget</code> 
+	 * greater than 0 the page ends early once the output reached the budget. 
+	 */
+	int writeTo(JsonCollectionWriter out, long byteBudget) throws IOException {
+		while (count < limit && iterator.hasNext()) {
+			if (byteBudget > 0 && out.getLength() >= byteBudget) {
+				truncated = true;
+				break;
+			}
+			count++;
+			Object result = iterator.next();
+			timer.enter(Phase.SERIALIZE);
+			write(out, result);
+			timer.enter(Phase.DATASTORE);
+		}
+		timer.queried(count, chunk);
+		return count;
+	}
+	
+	/** Fetches the results of the page, to be written with {@link #write} */
+	List<Object> fetch() {
+		List<Object> results = new ArrayList<Object>(limit);
+		while (count < limit && iterator.hasNext()) {
+			count++;
+			results.add(iterator.next());
+		}
+		timer.queried(count, chunk);
+		return results;
+	}
+	
+	/** Whether results beyond the page exist, once the page was read */
+	boolean hasMore() {
+		return iterator.hasNext();
+	}
+	
+	/** Writes a result, the caller accounts the time to serialization */
+	void write(JsonCollectionWriter out, Object result) throws IOException {
+		if (projected)
+			plan.writeProjected(out.getJsonWriter(), (Entity) result);
+		else if (plan == null)
+			out.writeEntity(result);
+		else 
+			plan.write(out.getJsonWriter(), result);
+	}
+	
+	/** 
+	 * The web safe cursor of the next page once the page was read, <code>null</code> if there 
+	 * are no more results
+	 */
+	String nextCursor() {
+		if (count < limit && !truncated) return null;
+		Cursor cursor = iterator.getCursor();
+		return iterator.hasNext() ? cursor.toWebSafeString() : null;
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.RawValue;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Compiled form of a <code>fields</code> parameter for a persistency class. The requested 
+ * attributes are resolved once to accessible fields together with their Gson type adapters, 
+ * writing a partial object is then reduced to reading the field values and streaming them.
+ * The values are read through the generated {@link EntityCodec} of the class if there is one.
+ * Plans are immutable and can be shared between requests.
+ * <p>
+ * If all selected attributes are indexed (or the identifier) the plan can also be served 
+ * from a Datastore projection query, see {@link #isIndexOnly()}.
+ */
+final class ProjectionPlan {
+	
+	private final Field[] fields;
+	private final String[] names;
+	private final TypeAdapter<Object>[] adapters;
+	private final boolean[] exactType;
+	private final Class<?>[] projectionTypes;
+	private final int idIndex;
+	private final String[] projectedProperties;
+	private final Gson gson;
+	// Generated codec of the class and the codec index of each field, null if read by reflection
+	private final EntityCodec<Object> codec;
+	private final int[] codecIndexes;
+	
+	private static final List<Class<?>> PROJECTABLE_TYPES = Arrays.<Class<?>>asList(
+			String.class, Long.class, Double.class, Boolean.class, Date.class);
+	
+	private ProjectionPlan(Gson gson, Class<?> clazz, List<Field> selected) {
+		this.gson = gson;
+		int size = selected.size();
+		fields = selected.toArray(new Field[size]);
+		names = new String[size];
+		adapters = newAdapterArray(size);
+		exactType = new boolean[size];
+		projectionTypes = new Class<?>[size];
+		int id = -1;
+		boolean indexOnly = true;
+		List<String> projected = new ArrayList<String>();
+		EntityMetadata metadata = EntityMetadata.get(clazz);
+		for (int i=0; i<size; i++) {
+			Field field = fields[i];
+			field.setAccessible(true);
+			names[i] = field.getName();
+			adapters[i] = adapter(gson, TypeToken.get(field.getGenericType()));
+			Class<?> type = field.getType();
+			exactType[i] = type.isPrimitive() || Modifier.isFinal(type.getModifiers());
+			projectionTypes[i] = EntityMetadata.boxed(type);
+			EntityMetadata.Property property = metadata.getProperty(names[i]);
+			if (property != null && property.id) {
+				id = i;
+			} else if (property != null && property.indexed && PROJECTABLE_TYPES.contains(projectionTypes[i])) {
+				projected.add(names[i]);
+			} else {
+				indexOnly = false;
+			}
+		}
+		idIndex = id;
+		projectedProperties = indexOnly ? projected.toArray(new String[projected.size()]) : null;
+		
+		EntityCodec<Object> entityCodec = codec(gson, clazz);
+		int[] indexes = new int[size];
+		for (int i=0; i<size && entityCodec != null; i++) {
+			indexes[i] = entityCodec.fieldIndex(names[i]);
+			if (indexes[i] < 0) entityCodec = null;
+		}
+		codec = entityCodec;
+		codecIndexes = indexes;
+	}
+	
+	/**
+	 * Compiles the comma separated <code>fieldList</code> against the declared fields of 
+	 * <code>clazz</code>, the attributes are written in declaration order and unknown names are ignored
+	 */
+	static ProjectionPlan compile(Class<?> clazz, String fieldList, Gson gson) {
+		Set<String> requested = new HashSet<String>();
+		StringTokenizer tok = new StringTokenizer(fieldList,",");
+		while (tok.hasMoreTokens()) requested.add(tok.nextToken().trim());
+		List<Field> selected = new ArrayList<Field>();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (requested.contains(field.getName())) selected.add(field);
+		}
+		return new ProjectionPlan(gson, clazz, selected);
+	}
+	
+	/**
+	 * True if all selected attributes are either the identifier or an indexed property of a 
+	 * simple type, in which case the values can be taken from a projection (or keys only) query 
+	 * instead of loading the full entities
+	 */
+	boolean isIndexOnly() {
+		return projectedProperties != null;
+	}
+	
+	/** The properties to project, empty if only the identifier is selected */
+	String[] getProjectedProperties() {
+		return projectedProperties;
+	}
+	
+	Class<?> getProjectionType(String property) {
+		for (int i=0; i<names.length; i++)
+			if (names[i].equals(property)) return projectionTypes[i];
+		return null;
+	}
+	
+	static String cacheKey(Class<?> clazz, String fieldList) {
+		return clazz.getName() + "#" + fieldList;
+	}
+	
+	/** Writes the selected attributes of <code>elem</code>, <code>null</code> values are written explicitly */
+	void write(JsonWriter out, Object elem) throws IOException {
+		out.beginObject();
+		for (int i=0; i<fields.length; i++) {
+			Object value;
+			if (codec != null) {
+				value = codec.getField(elem, codecIndexes[i]);
+			} else {
+				try {
+					value = fields[i].get(elem);
+				} catch (IllegalAccessException e) {
+					// Can't happen, the fields were made accessible while compiling
+					throw new IllegalStateException(e);
+				}
+			}
+			writeValue(out, i, value);
+		}
+		out.endObject();
+	}
+	
+	/** 
+	 * Writes the selected attributes from the result <code>entity</code> of a projection query,
+	 * only valid if the plan {@link #isIndexOnly()}
+	 */
+	void writeProjected(JsonWriter out, Entity entity) throws IOException {
+		out.beginObject();
+		for (int i=0; i<fields.length; i++) {
+			Object value;
+			if (i == idIndex) {
+				Key key = entity.getKey();
+				value = (projectionTypes[i] == String.class) ? key.getName() : Long.valueOf(key.getId());
+			} else {
+				value = entity.getProperty(names[i]);
+				if (value instanceof RawValue) value = ((RawValue) value).asType(projectionTypes[i]);
+			}
+			writeValue(out, i, value);
+		}
+		out.endObject();
+	}
+	
+	private void writeValue(JsonWriter out, int i, Object value) throws IOException {
+		if (value == null) {
+			boolean serializeNulls = out.getSerializeNulls();
+			out.setSerializeNulls(true);
+			out.name(names[i]);
+			out.nullValue();
+			out.setSerializeNulls(serializeNulls);
+			return;
+		}
+		out.name(names[i]);
+		if (exactType[i] || value.getClass() == fields[i].getType())
+			adapters[i].write(out, value);
+		else
+			adapter(gson, TypeToken.get(value.getClass())).write(out, value);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static EntityCodec<Object> codec(Gson gson, Class<?> clazz) {
+		TypeAdapter<?> adapter = gson.getAdapter(clazz);
+		return adapter instanceof EntityCodec ? (EntityCodec<Object>) adapter : null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static TypeAdapter<Object>[] newAdapterArray(int size) {
+		return new TypeAdapter[size];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static TypeAdapter<Object> adapter(Gson gson, TypeToken<?> type) {
+		return (TypeAdapter<Object>) gson.getAdapter(type);
+	}
+}
@@ -0,0 +1,323 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Compiled form of the <code>filter</code> parameter, a comma separated list of entries:
+ * <ul>
+ * <li><code>name:value</code> matches the value, or the value as prefix if one of the entries is 
+ * named <code>_option</code> (the legacy format)</li>
+ * <li><code>name:op:value</code> with the operators <code>eq</code>, <code>ne</code>, <code>gt</code>, 
+ * <code>ge</code>, <code>lt</code>, <code>le</code> and <code>in</code>, whose values are separated 
+ * by <code>|</code></li>
+ * <li><code>_order:name</code> or <code>_order:-name</code> sorts ascending or descending</li>
+ * </ul>
+ * A filter is parsed once, bound to the {@link EntityMetadata} of the class, which checks it 
+ * against the Datastore query restrictions, and can then be shared between requests. The 
+ * conditions can be applied to an Objectify query as well as to a low level Datastore query.
+ */
+final class QueryFilter {
+	
+	/** Maximum number of values of an <code>in</code> condition, the Datastore sub-query limit */
+	static final int MAX_IN_VALUES = 30;
+	
+	private static final String[] OPERATOR_NAMES = { "eq", "ne", "gt", "ge", "lt", "le", "in" };
+	private static final FilterOperator[] OPERATORS = { FilterOperator.EQUAL, FilterOperator.NOT_EQUAL, 
+		FilterOperator.GREATER_THAN, FilterOperator.GREATER_THAN_OR_EQUAL, FilterOperator.LESS_THAN, 
+		FilterOperator.LESS_THAN_OR_EQUAL, FilterOperator.IN };
+	
+	static final class Condition {
+		final String property;
+		final FilterOperator operator;
+		final Object value;
+		// Part of a legacy prefix match
+		final boolean prefix;
+		
+		Condition(String property, FilterOperator operator, Object value, boolean prefix) {
+			this.property = property;
+			this.operator = operator;
+			this.value = value;
+			this.prefix = prefix;
+		}
+		
+		boolean isInequality() {
+			return operator != FilterOperator.EQUAL && operator != FilterOperator.IN;
+		}
+	}
+	
+	static final class Order {
+		final String property;
+		final boolean descending;
+		
+		Order(String property, boolean descending) {
+			this.property = property;
+			this.descending = descending;
+		}
+	}
+	
+	private final List<Condition> conditions;
+	private final List<Order> orders;
+	
+	private QueryFilter(List<Condition> conditions, List<Order> orders) {
+		this.conditions = Collections.unmodifiableList(conditions);
+		this.orders = Collections.unmodifiableList(orders);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if an entry isn't of the format <code>name:value</code>, 
+	 * <code>name:op:value</code> or <code>_order:name</code>
+	 */
+	static QueryFilter parse(String filter) {
+		boolean optionUsed = filter.contains("_option");
+		List<Condition> conditions = new ArrayList<Condition>();
+		List<Order> orders = new ArrayList<Order>();
+		int start = 0;
+		while (start <= filter.length()) {
+			int end = filter.indexOf(',', start);
+			if (end < 0) end = filter.length();
+			String entry = filter.substring(start, end).trim();
+			start = end + 1;
+			if (entry.length() == 0) continue;
+			int colon = entry.indexOf(':');
+			if (colon <= 0 || colon == entry.length() - 1) 
+				throw new IllegalArgumentException(
+					"Bad Request Query Parameter provided to the API, 'filter' parameter must be of format <name>:<value>");
+			String name = entry.substring(0, colon);
+			String value = entry.substring(colon + 1);
+			if (name.endsWith("_option")) continue;
+			if (name.equals("_order")) {
+				boolean descending = value.charAt(0) == '-';
+				if (descending && value.length() == 1) 
+					throw new IllegalArgumentException("'filter' parameter '_order' requires a property name");
+				orders.add(new Order(descending ? value.substring(1) : value, descending));
+				continue;
+			}
+			FilterOperator operator = null;
+			int opEnd = value.indexOf(':');
+			if (opEnd > 0) {
+				operator = operator(value.substring(0, opEnd));
+				if (operator != null) {
+					value = value.substring(opEnd + 1);
+					if (value.length() == 0) 
+						throw new IllegalArgumentException("'filter' entry '"+entry+"' has no value");
+				}
+			}
+			if (operator == FilterOperator.IN) {
+				List<String> values = split(value, '|');
+				if (values.size() > MAX_IN_VALUES) 
+					throw new IllegalArgumentException("'filter' operator 'in' supports at most "+MAX_IN_VALUES+" values");
+				conditions.add(new Condition(name, operator, values, false));
+			} else if (operator != null) {
+				conditions.add(new Condition(name, operator, value, false));
+			} else if (optionUsed) {
+				conditions.add(new Condition(name, FilterOperator.GREATER_THAN_OR_EQUAL, value, true));
+				conditions.add(new Condition(name, FilterOperator.LESS_THAN, prefixUpperBound(value), true));
+			} else {
+				conditions.add(new Condition(name, FilterOperator.EQUAL, value, false));
+			}
+		}
+		return new QueryFilter(conditions, orders);
+	}
+	
+	/**
+	 * Checks the conditions against the persisted properties of the class and the Datastore query 
+	 * restrictions, and converts the values to the stored types. Conditions and orders on the 
+	 * identifier are turned into ones on the entity key.
+	 * @throws IllegalArgumentException if a property is unknown or not indexed, a value can't be 
+	 * converted or the combination of conditions and orders can't be run by the Datastore
+	 */
+	@SuppressWarnings("unchecked")
+	QueryFilter bind(EntityMetadata metadata) {
+		List<Condition> bound = new ArrayList<Condition>(conditions.size());
+		String inequalityProperty = null;
+		for (Condition condition : conditions) {
+			EntityMetadata.Property property = filterable(metadata, condition.property);
+			if (condition.prefix && property.type != String.class) 
+				throw new IllegalArgumentException("'filter' property '"+condition.property+"' can't be matched as prefix");
+			if (condition.isInequality()) {
+				if (inequalityProperty != null && !inequalityProperty.equals(condition.property)) 
+					throw new IllegalArgumentException("'filter' supports inequality conditions on a single property only");
+				inequalityProperty = condition.property;
+			}
+			Object value;
+			if (condition.operator == FilterOperator.IN) {
+				List<Object> values = new ArrayList<Object>();
+				for (String item : (List<String>) condition.value) values.add(convert(metadata, property, item));
+				value = values;
+			} else {
+				value = convert(metadata, property, (String) condition.value);
+			}
+			bound.add(new Condition(property.id ? Entity.KEY_RESERVED_PROPERTY : property.name, condition.operator, value, condition.prefix));
+		}
+		List<Order> boundOrders = new ArrayList<Order>(orders.size());
+		for (Order order : orders) {
+			EntityMetadata.Property property = filterable(metadata, order.property);
+			boundOrders.add(new Order(property.id ? Entity.KEY_RESERVED_PROPERTY : property.name, order.descending));
+		}
+		if (inequalityProperty != null && !orders.isEmpty() && !orders.get(0).property.equals(inequalityProperty)) 
+			throw new IllegalArgumentException("The first '_order' property must be the inequality property '"+inequalityProperty+"'");
+		return new QueryFilter(bound, boundOrders);
+	}
+	
+	List<Condition> getConditions() {
+		return conditions;
+	}
+	
+	List<Order> getOrders() {
+		return orders;
+	}
+	
+	/** 
+	 * False if the query is split into sub-queries by the Datastore (<code>in</code> or <code>ne</code> 
+	 * conditions), which don't support cursors
+	 */
+	boolean isCursorSupported() {
+		for (Condition condition : conditions) 
+			if (condition.operator == FilterOperator.IN || condition.operator == FilterOperator.NOT_EQUAL) return false;
+		return true;
+	}
+	
+	/** True if one of the <code>properties</code> is restricted by an equality or <code>in</code> condition */
+	boolean hasEqualityOn(String[] properties) {
+		for (Condition condition : conditions) {
+			if (condition.isInequality()) continue;
+			for (String property : properties) 
+				if (condition.property.equals(property)) return true;
+		}
+		return false;
+	}
+	
+	/** The property of the inequality conditions, <code>null</code> if there are none */
+	String getInequalityProperty() {
+		for (Condition condition : conditions) 
+			if (condition.isInequality()) return condition.property;
+		return null;
+	}
+	
+	/** True if one of the sort orders is on the entity key, which makes the order total */
+	boolean isOrderedByKey() {
+		for (Order order : orders) 
+			if (order.property.equals(Entity.KEY_RESERVED_PROPERTY)) return true;
+		return false;
+	}
+	
+	/** True if all sort orders are on the key or one of the <code>properties</code> */
+	boolean isOrderedWithin(String[] properties) {
+		for (Order order : orders) {
+			if (order.property.equals(Entity.KEY_RESERVED_PROPERTY)) continue;
+			boolean found = false;
+			for (String property : properties) 
+				if (order.property.equals(property)) found = true;
+			if (!found) return false;
+		}
+		return true;
+	}
+	
+	<T> Query<T> applyTo(Query<T> query) {
+		for (Condition condition : conditions) {
+			if (condition.operator == FilterOperator.EQUAL)
+				query = query.filter(condition.property, condition.value);
+			else
+				query = query.filter(condition.property+" "+symbol(condition.operator), condition.value);
+		}
+		for (Order order : orders) 
+			query = query.order(order.descending ? "-" + order.property : order.property);
+		return query;
+	}
+	
+	void applyTo(com.google.appengine.api.datastore.Query query) {
+		if (conditions.size() == 1) {
+			query.setFilter(predicate(conditions.get(0)));
+		} else if (!conditions.isEmpty()) {
+			List<Filter> filters = new ArrayList<Filter>(conditions.size());
+			for (Condition condition : conditions) filters.add(predicate(condition));
+			query.setFilter(CompositeFilterOperator.and(filters));
+		}
+		for (Order order : orders) 
+			query.addSort(order.property, order.descending ? SortDirection.DESCENDING : SortDirection.ASCENDING);
+	}
+	
+	private static FilterPredicate predicate(Condition condition) {
+		return new FilterPredicate(condition.property, condition.operator, condition.value);
+	}
+	
+	private static EntityMetadata.Property filterable(EntityMetadata metadata, String name) {
+		EntityMetadata.Property property = metadata.getProperty(name);
+		if (property == null) 
+			throw new IllegalArgumentException("'filter' property '"+name+"' doesn't exist");
+		if (!property.isFilterable()) 
+			throw new IllegalArgumentException("'filter' property '"+name+"' isn't indexed");
+		return property;
+	}
+	
+	private static Object convert(EntityMetadata metadata, EntityMetadata.Property property, String value) {
+		return property.id ? metadata.toRawKey(value) : property.convert(value);
+	}
+	
+	private static FilterOperator operator(String name) {
+		for (int i=0; i<OPERATOR_NAMES.length; i++) 
+			if (OPERATOR_NAMES[i].equals(name)) return OPERATORS[i];
+		return null;
+	}
+	
+	private static List<String> split(String value, char separator) {
+		List<String> values = new ArrayList<String>();
+		int start = 0;
+		while (true) {
+			int end = value.indexOf(separator, start);
+			if (end < 0) {
+				values.add(value.substring(start));
+				return values;
+			}
+			values.add(value.substring(start, end));
+			start = end + 1;
+		}
+	}
+	
+	private static String symbol(FilterOperator operator) {
+		switch (operator) {
+			case LESS_THAN: return "<";
+			case LESS_THAN_OR_EQUAL: return "<=";
+			case GREATER_THAN: return ">";
+			case GREATER_THAN_OR_EQUAL: return ">=";
+			case NOT_EQUAL: return "!=";
+			case IN: return "in";
+			default: return "=";
+		}
+	}
+	
+	/** The smallest string which is greater than all strings starting with <code>prefix</code> */
+	static String prefixUpperBound(String prefix) {
+		if (prefix.length() == 0) return prefix;
+		char[] chars = prefix.toCharArray();
+		chars[chars.length-1]++;
+		return new String(chars);
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Immutable holder of the query parameters of a single GET request. It is parsed once 
+ * in <code>doGet</code> and handed down to the collection and object retrieval, so that the 
+ * servlet itself keeps no per request state and can serve concurrent requests.
+ */
+public final class QuerySpec {
+	
+	private final String fields;
+	private final String filter;
+	private final String set;
+	private final String indexAttributes;
+	private final String cursor;
+	private final String limit;
+	private final String export;
+	private final String count;
+	
+	QuerySpec(String fields, String filter, String set, String indexAttributes, String cursor, String limit, 
+			String export, String count) {
+		this.fields = emptyToNull(fields);
+		this.filter = emptyToNull(filter);
+		this.set = emptyToNull(set);
+		this.indexAttributes = indexAttributes;
+		this.cursor = emptyToNull(cursor);
+		this.limit = emptyToNull(limit);
+		this.export = emptyToNull(export);
+		this.count = count;
+	}
+	
+	static QuerySpec parse(HttpServletRequest req) {
+		return new QuerySpec(req.getParameter("fields"), req.getParameter("filter"), req.getParameter("set"),
+				req.getParameter("indexAttributes"), req.getParameter("cursor"), 
+				req.getParameter("limit"), req.getParameter("export"), req.getParameter("count"));
+	}
+	
+	/** Comma separated list of attributes to return, <code>null</code> for the full object */
+	public String getFields() { return fields; }
+	
+	/** Filter expression of the format <code>name:value,...</code>, <code>null</code> if not set */
+	public String getFilter() { return filter; }
+	
+	/** Comma separated list of identifiers, <code>null</code> if not set */
+	public String getSet() { return set; }
+	
+	/** 
+	 * The identifiers of the <code>set</code> parameter in the given order 
+	 * @throws NumberFormatException if one of the identifiers isn't numeric
+	 */
+	public List<Long> getSetIds() {
+		List<Long> ids = new ArrayList<Long>();
+		if (set == null) return ids;
+		StringTokenizer tok = new StringTokenizer(set,",");
+		while (tok.hasMoreTokens()) ids.add(Long.valueOf(tok.nextToken().trim()));
+		return ids;
+	}
+	
+	public boolean isIndexAttributes() { return indexAttributes != null; }
+	
+	/** Whether the number of objects matching the <code>filter</code> is requested */
+	public boolean isCount() { return count != null; }
+	
+	/** Whether a maintained count is to be recounted, requested by <code>count=recount</code> */
+	public boolean isRecount() { return "recount".equals(count); }
+	
+	/** Web safe cursor string of the page to continue, <code>null</code> for the first page */
+	public String getCursor() { return cursor; }
+	
+	/** 
+	 * The requested page size, <code>null</code> for the servlet's default 
+	 * @throws NumberFormatException if the limit isn't a positive number
+	 */
+	public Integer getLimit() {
+		if (limit == null) return null;
+		int value = Integer.parseInt(limit.trim());
+		if (value < 1) throw new NumberFormatException("Limit must be positive: "+limit);
+		return value;
+	}
+	
+	/** Format of a complete export of the kind, e.g. <code>ndjson</code>, <code>null</code> for a page */
+	public String getExport() { return export; }
+	
+	public boolean hasFields() { return fields != null; }
+	
+	private static String emptyToNull(String value) {
+		return (value == null || value.length() == 0) ? null : value;
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.cloudburo.servlet.ServletMetrics.Phase;
+
+/**
+ * Attributes the time of a request to its phases. Exactly one phase is active at any time, 
+ * {@link #enter} switches to another one and returns the previous phase to be restored. The 
+ * timer of the current request is bound to the thread, code without a request gets a disabled 
+ * timer which ignores all calls. With a {@link RequestTracer} the spans of sampled requests are 
+ * recorded, sampled and slow requests are logged once finished.
+ */
+final class RequestTimer {
+	
+	private static final ThreadLocal<RequestTimer> current = new ThreadLocal<RequestTimer>();
+	private static final RequestTimer DISABLED = new RequestTimer(null, 0, null, null);
+	
+	private final ServletMetrics metrics;
+	private final int method;
+	private final long start;
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private Phase phase = Phase.PARSE;
+	private long phaseStart;
+	private MeteredResponse response;
+	private boolean completed;
+	private final RequestTracer tracer;
+	private final HttpServletRequest request;
+	// Triples of phase, start and duration, only for sampled requests
+	private final long[] spans;
+	private int spanCount;
+	private int droppedSpans;
+	
+	private RequestTimer(ServletMetrics metrics, int method, RequestTracer tracer, HttpServletRequest request) {
+		this.metrics = metrics;
+		this.method = method;
+		this.tracer = tracer;
+		this.request = request;
+		spans = (tracer != null && tracer.sample()) ? new long[RequestTracer.MAX_SPANS * 3] : null;
+		start = metrics == null ? 0 : System.nanoTime();
+		phaseStart = start;
+	}
+	
+	/** 
+	 * Starts the timer of a request in the parse phase and binds it to the thread 
+	 * @param tracer <code>null</code> if no requests are logged
+	 */
+	static RequestTimer start(ServletMetrics metrics, int method, RequestTracer tracer, HttpServletRequest request) {
+		RequestTimer timer = new RequestTimer(metrics, method, tracer, request);
+		current.set(timer);
+		return timer;
+	}
+	
+	static RequestTimer current() {
+		RequestTimer timer = current.get();
+		return timer == null ? DISABLED : timer;
+	}
+	
+	/** Switches to <code>next</code>, returns the phase active before */
+	Phase enter(Phase next) {
+		if (metrics == null) return next;
+		long now = System.nanoTime();
+		phaseNanos[phase.ordinal()] += now - phaseStart;
+		if (spans != null && now - phaseStart >= RequestTracer.MIN_SPAN_NANOS) span(now);
+		phaseStart = now;
+		Phase previous = phase;
+		phase = next;
+		return previous;
+	}
+	
+	private void span(long now) {
+		// Re-entering the active phase continues its span
+		if (spanCount > 0 && spans[(spanCount-1)*3] == phase.ordinal()) {
+			spans[(spanCount-1)*3+2] += now - phaseStart;
+			return;
+		}
+		if (spanCount == RequestTracer.MAX_SPANS) {
+			droppedSpans++;
+			return;
+		}
+		spans[spanCount*3] = phase.ordinal();
+		spans[spanCount*3+1] = phaseStart - start;
+		spans[spanCount*3+2] = now - phaseStart;
+		spanCount++;
+	}
+	
+	/** Counts a Datastore call reading <code>entities</code> */
+	void read(long entities) {
+		read(1, entities);
+	}
+	
+	/** Counts <code>calls</code> to the Datastore, which together returned <code>entities</code> */
+	void read(int calls, long entities) {
+		if (metrics == null) return;
+		metrics.datastoreCalls.addAndGet(calls);
+		metrics.entitiesRead.addAndGet(entities);
+	}
+	
+	/** 
+	 * Counts a query returning <code>entities</code> in batches of <code>chunk</code>, each batch 
+	 * is a call, also the one finding no more results
+	 */
+	void queried(long entities, int chunk) {
+		read((int) (entities / chunk) + 1, entities);
+	}
+	
+	/** Counts a Datastore call writing or deleting <code>entities</code> */
+	void written(long entities) {
+		if (metrics == null) return;
+		metrics.datastoreCalls.incrementAndGet();
+		metrics.entitiesWritten.addAndGet(entities);
+	}
+	
+	/** The response of the request, recording its status and size */
+	HttpServletResponse wrap(HttpServletResponse resp) {
+		response = new MeteredResponse(resp);
+		return response;
+	}
+	
+	/** Marks the request as completed without exception */
+	void completed() {
+		completed = true;
+	}
+	
+	/** 
+	 * Records the request, to be called in a <code>finally</code> block. A timer without metrics, 
+	 * e.g. of a servlet whose <code>init</code> didn't run, is only unbound from the thread.
+	 */
+	void finish() {
+		current.remove();
+		if (metrics == null) return;
+		enter(phase);
+		boolean failed = !completed;
+		if (response != null) {
+			failed |= response.status >= HttpServletResponse.SC_BAD_REQUEST;
+			metrics.responseBytes.addAndGet(response.getBytes());
+		}
+		long nanos = phaseStart - start;
+		metrics.record(method, nanos, phaseNanos, failed);
+		if (tracer != null && (spans != null || tracer.isSlow(nanos))) {
+			String path = ServletMetrics.methodName(method) + " " + request.getPathInfo();
+			if (tracer.isPayloadLogged() && request.getQueryString() != null) path += "?" + request.getQueryString();
+			tracer.log(path, response == null ? 0 : response.status, nanos, phaseNanos, spans, spanCount, droppedSpans);
+		}
+	}
+	
+	private static final class MeteredResponse extends HttpServletResponseWrapper {
+		
+		int status = SC_OK;
+		private long bytes;
+		private CountingWriter counter;
+		private PrintWriter writer;
+		private ServletOutputStream stream;
+		
+		MeteredResponse(HttpServletResponse resp) {
+			super(resp);
+		}
+		
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+		
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+		
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+		
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				counter = new CountingWriter(super.getWriter());
+				writer = new PrintWriter(counter);
+			}
+			return writer;
+		}
+		
+		long getBytes() {
+			return bytes + (counter == null ? 0 : counter.getCount());
+		}
+		
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (stream == null) {
+				final ServletOutputStream out = super.getOutputStream();
+				stream = new ServletOutputStream() {
+					public void write(int b) throws IOException {
+						out.write(b);
+						bytes++;
+					}
+					
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+						bytes += len;
+					}
+					
+					public void flush() throws IOException {
+						out.flush();
+					}
+					
+					public void close() throws IOException {
+						out.close();
+					}
+				};
+			}
+			return stream;
+		}
+	}
+}
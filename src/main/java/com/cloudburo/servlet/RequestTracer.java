@@ -0,0 +1,99 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.cloudburo.servlet.ServletMetrics.Phase;
+
+/**
+ * Decides which requests are traced and logs their phases. Every n-th request is sampled and logged 
+ * with its sequence of phase spans, requests above the latency threshold are always logged with 
+ * their phase totals. Requests which are neither sampled nor slow aren't logged at all.
+ */
+final class RequestTracer {
+	
+	private static final Logger logger = Logger.getLogger(RequestTracer.class.getCanonicalName());
+	
+	/** Maximum number of spans kept for a traced request, e.g. a page switches phases per entity */
+	static final int MAX_SPANS = 64;
+	
+	/** Shorter spans, e.g. the serialization of a single entity, only count towards the phase totals */
+	static final long MIN_SPAN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	
+	private final int sampleInterval;
+	private final long slowNanos;
+	private final boolean payload;
+	private final AtomicLong requests = new AtomicLong();
+	
+	/**
+	 * @param sampleInterval trace one in <code>sampleInterval</code> requests, 0 for none
+	 * @param slowMillis latency from which requests are always logged, 0 for none
+	 * @param payload whether the query string is logged
+	 */
+	RequestTracer(int sampleInterval, long slowMillis, boolean payload) {
+		this.sampleInterval = sampleInterval;
+		this.slowNanos = slowMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.payload = payload;
+	}
+	
+	boolean sample() {
+		return sampleInterval > 0 && requests.incrementAndGet() % sampleInterval == 0;
+	}
+	
+	boolean isSlow(long nanos) {
+		return nanos >= slowNanos;
+	}
+	
+	boolean isPayloadLogged() {
+		return payload;
+	}
+	
+	/**
+	 * @param spans triples of phase ordinal, start and duration in nanos, <code>null</code> if not sampled
+	 */
+	void log(String request, int status, long nanos, long[] phaseNanos, long[] spans, int spanCount, int droppedSpans) {
+		StringBuilder msg = new StringBuilder(256);
+		msg.append(request).append(' ').append(status).append(' ');
+		millis(msg, nanos);
+		Phase[] phases = Phase.values();
+		for (int i=0; i<phases.length; i++) {
+			msg.append(' ').append(phases[i].name().toLowerCase()).append('=');
+			millis(msg, phaseNanos[i]);
+		}
+		if (spans != null) {
+			msg.append(" spans:");
+			for (int i=0; i<spanCount; i++) {
+				msg.append(' ').append(phases[(int) spans[i*3]].name().toLowerCase()).append('@');
+				millis(msg, spans[i*3+1]);
+				msg.append('+');
+				millis(msg, spans[i*3+2]);
+			}
+			if (droppedSpans > 0) msg.append(" (").append(droppedSpans).append(" more)");
+		}
+		logger.log(isSlow(nanos) ? Level.WARNING : Level.INFO, msg.toString());
+	}
+	
+	private static void millis(StringBuilder msg, long nanos) {
+		msg.append(nanos / 1000000).append('.').append(nanos / 100000 % 10).append("ms");
+	}
+}
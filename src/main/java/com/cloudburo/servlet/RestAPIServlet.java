@@ -18,14 +18,17 @@
 package com.cloudburo.servlet;
 
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
-import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,12 +38,26 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.cloudburo.servlet.ServletMetrics.Phase;
+import com.google.apphosting.api.ApiProxy;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
-import com.googlecode.objectify.annotation.Id;
-import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.cmd.Query;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Refer to the JSON API specification under
@@ -52,10 +69,32 @@ public abstract class RestAPIServlet extends HttpServlet {
 	private static final Logger logger = Logger.getLogger(RestAPIServlet.class.getCanonicalName());
 	protected static int sResponseLimit = 20;
 	
-	private String fields=null;
-	private String filter=null;
-	private String set=null;
-	private String indexAttributes = null;
+	private static final int PROJECTION_PLAN_CACHE_SIZE = 64;
+	private static final int QUERY_FILTER_CACHE_SIZE = 256;
+	private static final int BATCH_MAX_IN_FLIGHT = 4;
+	private static final int MAX_PAGE_SIZE = 1000;
+	private static final int MAX_ENTITY_CHUNK = 100;
+	private static final int MAX_PROJECTION_CHUNK = 500;
+	private static final String EXPORT_NDJSON = "ndjson";
+	private static final int EXPORT_CHUNK = 500;
+	private static final long EXPORT_DEADLINE_RESERVE_MILLIS = 5000;
+	private static final long EXPORT_BYTE_BUDGET = 24L * 1024 * 1024;
+	private static final int COUNTER_SHARDS = 8;
+	private static final long SLOW_REQUEST_MILLIS = 2000;
+	private static final String RESPOND_ASYNC = "respond-async";
+	
+	private GsonWrapper gsonWrapper;
+	private LruCache<String,ProjectionPlan> projectionPlans;
+	private LruCache<String,QueryFilter> queryFilters;
+	private EntityCache entityCache;
+	private PageCache pageCache;
+	private Executor prefetchExecutor;
+	private KeyLookupEngine keyLookup;
+	private EntityMetadata metadata;
+	private ShardedCounters counters;
+	private List<EntityMetadata.Property> countedProperties;
+	private ServletMetrics metrics;
+	private RequestTracer tracer;
 	
 	protected class MetaRecord {
 		String _cursor;
@@ -66,7 +105,9 @@ public abstract class RestAPIServlet extends HttpServlet {
 	
 	/** 
 	 * Method allows to set the number of objects returned. 
-	 * Helpful for testing purposes **/
+	 * Helpful for testing purposes 
+	 * @deprecated applies to all servlets, override {@link #getDefaultPageSize()} instead **/
+	@Deprecated
 	public static void setResponseResultSize(int limit) {sResponseLimit = limit;}
 	
 	@SuppressWarnings("rawtypes")
@@ -74,198 +115,921 @@ public abstract class RestAPIServlet extends HttpServlet {
 	
 	protected abstract  Objectify ofy();
 	
+	/**
+	 * Sets up the state shared by all requests, subclasses overriding this method 
+	 * have to call <code>super.init()</code>
+	 */
+	public void init() throws ServletException {
+		super.init();
+		gsonWrapper = new GsonWrapper();
+		projectionPlans = new LruCache<String,ProjectionPlan>(PROJECTION_PLAN_CACHE_SIZE);
+		queryFilters = new LruCache<String,QueryFilter>(QUERY_FILTER_CACHE_SIZE);
+		entityCache = createEntityCache();
+		pageCache = createPageCache();
+		if (pageCache != null) prefetchExecutor = createPrefetchExecutor();
+		keyLookup = new KeyLookupEngine(entityCache);
+		metadata = EntityMetadata.get(getPersistencyClass());
+		metrics = ServletMetrics.get(getPersistencyClass());
+		if (getTraceSampleInterval() > 0 || getSlowRequestMillis() > 0) 
+			tracer = new RequestTracer(getTraceSampleInterval(), getSlowRequestMillis(), isPayloadLoggingEnabled());
+		String[] counted = getCountedProperties();
+		if (counted != null) {
+			counters = new ShardedCounters(COUNTER_SHARDS);
+			countedProperties = new ArrayList<EntityMetadata.Property>();
+			for (String name : counted) {
+				EntityMetadata.Property property = metadata.getProperty(name);
+				if (property == null || !property.isFilterable() || property.id) 
+					throw new ServletException("Counted property '"+name+"' isn't an indexed property");
+				countedProperties.add(property);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the cache used for single object reads, by default <code>null</code>, i.e. every object 
+	 * is read from the Datastore and strongly consistent. A {@link LocalEntityCache} only sees the 
+	 * writes through this instance, other instances serve the previous object until the entry 
+	 * expired, e.g. <code>new LocalEntityCache(1000, 10000)</code> for up to 10 seconds. A 
+	 * {@link MemcacheEntityCache}, alone or behind a local level in a {@link TieredEntityCache}, 
+	 * is shared by all instances.
+	 */
+	protected EntityCache createEntityCache() {
+		return null;
+	}
+	
+	/**
+	 * Creates the cache of serialized collection pages, by default <code>null</code>, i.e. every page 
+	 * is queried. Pages are invalidated by writes through this instance; writes on other instances 
+	 * become visible once the cached pages expired, e.g. <code>new PageCache(500, 10000)</code> serves 
+	 * pages up to 10 seconds old. As the queries are eventually consistent, this bound also applies 
+	 * to writes through this instance, plus the replication delay of the Datastore. Cached pages 
+	 * are answered with an <code>ETag</code>, a conditional request for an unchanged cached page 
+	 * gets a <code>304</code> without a query. Without the cache pages are streamed and have no 
+	 * <code>ETag</code>.
+	 */
+	protected PageCache createPageCache() {
+		return null;
+	}
+	
+	protected GsonWrapper getGsonWrapper() {
+		return gsonWrapper;
+	}
+	
+	/** Counters of the single object cache, <code>null</code> if the cache is disabled */
+	public CacheStatistics getEntityCacheStatistics() {
+		return entityCache == null ? null : entityCache.getStatistics();
+	}
+	
+	/**
+	 * Properties whose number of objects per value is maintained in sharded counters, by default 
+	 * <code>null</code>, i.e. counts are queried. With an empty array only the total is maintained. 
+	 * Single object writes update the counters, bulk writes reset them; a missing counter is 
+	 * seeded with a keys only count once it is read. The previous state of an object is read 
+	 * outside of the save's transaction, so concurrent writes of the same object can make the 
+	 * counters drift; <code>count=recount</code> replaces a counter with a fresh count.
+	 */
+	protected String[] getCountedProperties() {
+		return null;
+	}
+	
+	/** 
+	 * Logs the phases of one in n requests, by default 0, i.e. no requests are sampled. 
+	 * Sampled requests are logged with the sequence of their phases.
+	 */
+	protected int getTraceSampleInterval() {
+		return 0;
+	}
+	
+	/** Requests taking at least this many milliseconds are logged as warning, 0 to disable */
+	protected long getSlowRequestMillis() {
+		return SLOW_REQUEST_MILLIS;
+	}
+	
+	/** Whether traced requests are logged with their query string, which may contain personal data */
+	protected boolean isPayloadLoggingEnabled() {
+		return false;
+	}
+	
+	/** Counters of the collection page cache, <code>null</code> if the cache is disabled */
+	public CacheStatistics getPageCacheStatistics() {
+		return pageCache == null ? null : pageCache.getStatistics();
+	}
+	
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException, ServletException {
-		req.setCharacterEncoding("UTF-8");
-		resp.setCharacterEncoding("UTF-8");
-		logger.log(Level.FINER, "Call with following path {0}", req.getPathInfo());
-		fields= req.getParameter("fields");
-		filter= req.getParameter("filter");
-		indexAttributes = req.getParameter("indexAttributes");
-		set=req.getParameter("set");
-		logger.log(Level.INFO, "Field parameter {0}", fields);
-		logger.log(Level.INFO, "Filter parameter {0}", filter);
-		logger.log(Level.INFO, "Going to fetch {0} objects", getPersistencyClass().getName());
-		if (req.getPathInfo() == null || req.getPathInfo().length()==1) {
-			getCollection(getPersistencyClass(),req,resp);
-		} else {
-			getObject(getPersistencyClass(),req,resp);	
+		RequestTimer timer = RequestTimer.start(metrics, ServletMetrics.GET, tracer, req);
+		try {
+			resp = timer.wrap(resp);
+			req.setCharacterEncoding("UTF-8");
+			resp.setCharacterEncoding("UTF-8");
+			QuerySpec spec = QuerySpec.parse(req);
+			if (req.getPathInfo() == null || req.getPathInfo().length()==1) {
+				getCollection(getPersistencyClass(),spec,req,resp);
+			} else {
+				getObject(getPersistencyClass(),spec,req,resp);	
+			}
+			timer.completed();
+		} finally {
+			timer.finish();
 		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	protected void doPut(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		req.setCharacterEncoding("UTF-8");
-		resp.setCharacterEncoding("UTF-8");
-		Object obj = (new GsonWrapper()).getGson().fromJson(req.getReader(),getPersistencyClass());
-		logger.log(Level.INFO, "Updating "+obj.getClass().getName()+" "+req.getCharacterEncoding());
-		ofy().save().entity(obj).now();
-		//logger.log(Level.INFO, "Persisted Customer with id {0}",customer._id);
-		resp.getWriter().print((new GsonWrapper()).getGson().toJson(obj));
+		RequestTimer timer = RequestTimer.start(metrics, ServletMetrics.PUT, tracer, req);
+		// Written pages of the kind must not be served from the page cache anymore, also after a failure
+		try {
+			resp = timer.wrap(resp);
+			req.setCharacterEncoding("UTF-8");
+			resp.setCharacterEncoding("UTF-8");
+			if (isArrayBody(req.getReader())) {
+				saveBatch(req, resp);
+			} else {
+				Object obj = gsonWrapper.getGson().fromJson(req.getReader(),getPersistencyClass());
+				saveObject(obj, req, resp);
+			}
+			timer.completed();
+		} finally {
+			PageCache.invalidate(metadata.getKind());
+			timer.finish();
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		req.setCharacterEncoding("UTF-8");
-		resp.setCharacterEncoding("UTF-8");
-		Object obj = (new GsonWrapper()).getGson().fromJson(req.getReader(),getPersistencyClass());
-		logger.log(Level.INFO, "Creating "+obj.getClass().getName());
-		ofy().save().entity(obj).now();
-		//logger.log(Level.INFO, "Persisted Customer with id {0}",customer._id);
-		resp.getWriter().print((new GsonWrapper()).getGson().toJson(obj));
+		RequestTimer timer = RequestTimer.start(metrics, ServletMetrics.POST, tracer, req);
+		try {
+			resp = timer.wrap(resp);
+			req.setCharacterEncoding("UTF-8");
+			resp.setCharacterEncoding("UTF-8");
+			if (req.getParameter("import") != null) {
+				importStream(req, resp);
+			} else if (isArrayBody(req.getReader())) {
+				saveBatch(req, resp);
+			} else {
+				Object obj = gsonWrapper.getGson().fromJson(req.getReader(),getPersistencyClass());
+				saveObject(obj, req, resp);
+			}
+			timer.completed();
+		} finally {
+			PageCache.invalidate(metadata.getKind());
+			timer.finish();
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	protected void doDelete(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		req.setCharacterEncoding("UTF-8");
-		resp.setCharacterEncoding("UTF-8");
-		Key<?> objectKey = Key.create(getPersistencyClass(), Long.parseLong(req.getPathInfo().substring(1)));
-		logger.log(Level.INFO, "Deleting object with identifier {0}",  objectKey);
-		ofy().delete().key(objectKey).now();
+		RequestTimer timer = RequestTimer.start(metrics, ServletMetrics.DELETE, tracer, req);
+		try {
+			resp = timer.wrap(resp);
+			req.setCharacterEncoding("UTF-8");
+			resp.setCharacterEncoding("UTF-8");
+			if (req.getPathInfo() == null || req.getPathInfo().length()==1) {
+				deleteCollection(getPersistencyClass(), QuerySpec.parse(req), resp);
+			} else {
+				Key<?> objectKey = Key.create(getPersistencyClass(), Long.parseLong(req.getPathInfo().substring(1)));
+				timer.enter(Phase.DATASTORE);
+				Object previous = counters == null ? null : ofy().load().key(objectKey).now();
+				ofy().delete().key(objectKey).now();
+				timer.written(1);
+				if (entityCache != null) entityCache.invalidate(objectKey);
+				updateCounters(previous, null);
+			}
+			timer.completed();
+		} finally {
+			PageCache.invalidate(metadata.getKind());
+			timer.finish();
+		}
+	}
+	
+	private void saveObject(Object obj, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		RequestTimer timer = RequestTimer.current();
+		timer.enter(Phase.DATASTORE);
+		Object previous = loadPrevious(obj);
+		String prefer = req.getHeader("Prefer");
+		if (isAsyncWriteEnabled() || (prefer != null && prefer.contains(RESPOND_ASYNC))) {
+			saveObjectAsync(obj, previous, resp);
+			return;
+		}
+		ofy().save().entity(obj).now();
+		timer.written(1);
+		updateCounters(previous, obj);
+		if (entityCache != null) entityCache.put(Key.create(obj), obj);
+		timer.enter(Phase.SERIALIZE);
+		gsonWrapper.getGson().toJson(obj, resp.getWriter());
+	}
+	
+	/** The persisted state of an object to be saved, if counters are maintained and it has an identifier */
+	@SuppressWarnings("unchecked")
+	private Object loadPrevious(Object obj) {
+		if (counters == null) return null;
+		EntityMetadata.Property id = metadata.getIdProperty();
+		try {
+			if (id == null || id.field.get(obj) == null) return null;
+		} catch (IllegalAccessException e) {
+			// Can't happen, the identifier field was made accessible by the metadata
+			throw new IllegalStateException(e);
+		}
+		return ofy().load().key(Key.create(obj)).now();
+	}
+	
+	/** Moves the counts of a written object from its <code>previous</code> to its <code>current</code> values */
+	private void updateCounters(Object previous, Object current) {
+		if (counters == null || (previous == null && current == null)) return;
+		String kind = metadata.getKind();
+		if (previous == null) 
+			counters.add(kind, kind, 1);
+		else if (current == null) 
+			counters.add(kind, kind, -1);
+		try {
+			for (EntityMetadata.Property property : countedProperties) {
+				Object before = previous == null ? null : property.field.get(previous);
+				Object after = current == null ? null : property.field.get(current);
+				if (before == null ? after == null : before.equals(after)) continue;
+				if (before != null) counters.add(kind, ShardedCounters.name(kind, property.name, before), -1);
+				if (after != null) counters.add(kind, ShardedCounters.name(kind, property.name, after), 1);
+			}
+		} catch (IllegalAccessException e) {
+			// Can't happen, the fields were made accessible by the metadata
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Issues the save without waiting for the commit. A missing numeric identifier is allocated 
+	 * up front so that it can be returned, the response is written and flushed while the commit 
+	 * is pending. The outcome is reported to {@link #onAsyncWriteComplete} or {@link #onAsyncWriteFailure}. 
+	 * The object is only cached once the commit succeeded, until then reads return the previous state.
+	 */
+	@SuppressWarnings({ "unchecked", "static-access" })
+	private void saveObjectAsync(Object obj, Object previous, HttpServletResponse resp) throws IOException {
+		EntityMetadata.Property id = metadata.getIdProperty();
+		try {
+			if (id != null && id.type == Long.class && id.field.get(obj) == null) 
+				id.field.set(obj, Long.valueOf(ofy().factory().allocateId(getPersistencyClass()).getId()));
+		} catch (IllegalAccessException e) {
+			// Can't happen, the identifier field was made accessible by the metadata
+			throw new IllegalStateException(e);
+		}
+		RequestTimer timer = RequestTimer.current();
+		Result<?> result = ofy().save().entity(obj);
+		timer.written(1);
+		Key<?> key = Key.create(obj);
+		resp.setStatus(resp.SC_ACCEPTED);
+		timer.enter(Phase.SERIALIZE);
+		gsonWrapper.getGson().toJson(obj, resp.getWriter());
+		resp.getWriter().flush();
+		timer.enter(Phase.DATASTORE);
+		try {
+			result.now();
+			if (entityCache != null) entityCache.put(key, obj);
+			updateCounters(previous, obj);
+			onAsyncWriteComplete(key, obj);
+		} catch (RuntimeException e) {
+			// A failed commit may still have been applied, the next read goes to the Datastore
+			if (entityCache != null) entityCache.invalidate(key);
+			onAsyncWriteFailure(key, obj, e);
+		}
+	}
+	
+	/**
+	 * Whether <code>PUT</code> and <code>POST</code> of single objects return before the Datastore 
+	 * commit completed, answering with <code>202 Accepted</code>. Clients can request this mode for a 
+	 * single request with the header <code>Prefer: respond-async</code>.
+	 */
+	protected boolean isAsyncWriteEnabled() {
+		return false;
+	}
+	
+	/** Called once the commit of an asynchronous write completed */
+	protected void onAsyncWriteComplete(Key<?> key, Object entity) {
+		logger.log(Level.FINE, "Asynchronous write of {0} completed", key);
+	}
+	
+	/** 
+	 * Called if the commit of an asynchronous write failed, after the client already received 
+	 * <code>202</code> with the identifier, e.g. to notify the client or retry the write
+	 */
+	protected void onAsyncWriteFailure(Key<?> key, Object entity, RuntimeException e) {
+		logger.log(Level.SEVERE, "Asynchronous write of "+key+" failed", e);
+	}
+	
+	/**
+	 * Persists a JSON array of objects. The array is decoded element by element and saved in 
+	 * batches, the response is an array with the assigned identifier or the error of every element.
+	 */
+	private void saveBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json");
+		Gson gson = gsonWrapper.getGson();
+		JsonReader in = new JsonReader(req.getReader());
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(resp.getWriter());
+		out.beginArray();
+		BatchSaver saver = new BatchSaver(ofy(), getBatchSize(), BATCH_MAX_IN_FLIGHT, out, new BatchSaver.Listener() {
+			public void saved(Key<?> key, Object entity) {
+				if (entityCache != null) entityCache.put(key, entity);
+			}
+		});
+		JsonParser parser = new JsonParser();
+		long index = 0;
+		try {
+			in.beginArray();
+			while (in.hasNext()) {
+				JsonElement element = parser.parse(in);
+				try {
+					saver.add(index, gson.fromJson(element, getPersistencyClass()));
+				} catch (JsonParseException e) {
+					saver.fail(index, e.getMessage());
+				}
+				index++;
+			}
+		} catch (JsonParseException e) {
+			// The remainder of the body can't be read, report it as failure of the current element
+			saver.fail(index, e.getMessage());
+		}
+		saver.finish();
+		if (counters != null) counters.reset(metadata.getKind());
+		out.endArray();
+		out.flush();
+		logger.log(Level.FINE, "Batch of {0} objects saved, {1} failed", 
+				new Object[] { saver.getSavedCount(), saver.getFailedCount() });
+	}
+	
+	/**
+	 * Persists a body of newline delimited JSON objects as it is read, in batches like 
+	 * {@link #saveBatch}. The response is an array with the error of every failed line, 
+	 * <code>index</code> being the number of the line starting at 0, and a final record with 
+	 * the number of saved and failed objects.
+	 */
+	@SuppressWarnings("static-access")
+	private void importStream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		if (!EXPORT_NDJSON.equals(req.getParameter("import"))) {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'import' parameter supports 'ndjson' only","0003",""));
+			return;
+		}
+		resp.setContentType("application/json");
+		Gson gson = gsonWrapper.getGson();
+		BufferedReader in = req.getReader();
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(resp.getWriter());
+		out.beginArray();
+		BatchSaver saver = new BatchSaver(ofy(), getBatchSize(), BATCH_MAX_IN_FLIGHT, out, new BatchSaver.Listener() {
+			public void saved(Key<?> key, Object entity) {
+				if (entityCache != null) entityCache.put(key, entity);
+			}
+		}, true);
+		long index = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().length() > 0) {
+				try {
+					Object entity = gson.fromJson(line, getPersistencyClass());
+					if (entity == null)
+						saver.fail(index, "Line doesn't contain an object");
+					else
+						saver.add(index, entity);
+				} catch (JsonParseException e) {
+					saver.fail(index, e.getMessage());
+				}
+			}
+			index++;
+		}
+		saver.finish();
+		if (counters != null) counters.reset(metadata.getKind());
+		out.beginObject();
+		out.name("saved").value(saver.getSavedCount());
+		out.name("failed").value(saver.getFailedCount());
+		out.endObject();
+		out.endArray();
+		out.flush();
+		logger.log(Level.FINE, "Import of {0} objects, {1} failed", 
+				new Object[] { saver.getSavedCount(), saver.getFailedCount() });
+	}
+	
+	/**
+	 * Deletes the objects selected by the <code>set</code> or the <code>filter</code> parameter, the 
+	 * latter is resolved with a keys only query. The response is an array with the result of every key.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes", "static-access" })
+	private void deleteCollection(Class clazz, QuerySpec spec, HttpServletResponse resp) throws IOException {
+		Iterable<Key<?>> keys;
+		if (spec.getSet() != null) {
+			List<Key<?>> setKeys = new ArrayList<Key<?>>();
+			try {
+				for (Long id : spec.getSetIds()) setKeys.add(Key.create(clazz, id));
+			} catch (NumberFormatException e) {
+				resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'set' parameter must be a list of numeric identifiers","0003",""));
+				return;
+			}
+			keys = setKeys;
+		} else if (spec.getFilter() != null) {
+			QueryFilter queryFilter = parseFilter(spec.getFilter(), resp);
+			if (queryFilter == null) return;
+			Query<?> query = queryFilter.applyTo(ofy().load().type(clazz)).chunk(KeyLookupEngine.BATCH_SIZE);
+			keys = (Iterable) query.keys().iterable();
+		} else {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg(
+					"Deleting a collection requires a 'set' or a 'filter' parameter","0004",""));
+			return;
+		}
+		resp.setContentType("application/json");
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(resp.getWriter());
+		out.beginArray();
+		BatchDeleter deleter = new BatchDeleter(ofy(), getBatchSize(), BATCH_MAX_IN_FLIGHT, out, new BatchDeleter.Listener() {
+			public void deleted(Key<?> key) {
+				if (entityCache != null) entityCache.invalidate(key);
+			}
+		});
+		RequestTimer.current().enter(Phase.DATASTORE);
+		for (Key<?> key : keys) deleter.add(key);
+		deleter.finish();
+		if (counters != null) counters.reset(metadata.getKind());
+		out.endArray();
+		out.flush();
+		logger.log(Level.FINE, "Deleted {0} objects, {1} failed", 
+				new Object[] { deleter.getDeletedCount(), deleter.getFailedCount() });
+	}
+	
+	/** Number of objects persisted or deleted with a single Datastore call, at most 500 */
+	protected int getBatchSize() {
+		return BatchSaver.MAX_BATCH_SIZE;
+	}
+	
+	/** Peeks whether the request body is a JSON array, without consuming it */
+	private static boolean isArrayBody(BufferedReader reader) throws IOException {
+		while (true) {
+			reader.mark(1);
+			int ch = reader.read();
+			if (ch == -1) return false;
+			if (!Character.isWhitespace(ch)) {
+				reader.reset();
+				return ch == '[';
+			}
+		}
 	}
 	
 	@SuppressWarnings({ "unchecked", "rawtypes", "static-access" })
-	private void getCollection(Class clazz, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	private void getCollection(Class clazz, QuerySpec spec, HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		req.setCharacterEncoding("UTF-8");
 		resp.setCharacterEncoding("UTF-8");
 		resp.setContentType("application/json");
 		// We got a list of identifiers
-		if (set != null) {
-			logger.log(Level.INFO, "Set  String {0}",  set);
-			StringTokenizer tok = new StringTokenizer(set,",");
-			Vector vec = new Vector();
-			StringBuffer buf = new StringBuffer("[");
-			while (tok.hasMoreTokens()) vec.add(Long.parseLong(tok.nextToken()));
-			Iterator mapIt = ofy().load().type(clazz).ids(vec).values().iterator();
-			while (mapIt.hasNext()) {
-				if (fields == null)
-					buf.append((new GsonWrapper()).getGson().toJson(mapIt.next()));
+		if (spec.getSet() != null) {
+			List<Long> ids;
+			try {
+				ids = spec.getSetIds();
+			} catch (NumberFormatException e) {
+				resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'set' parameter must be a list of numeric identifiers","0003",""));
+				return;
+			}
+			RequestTimer timer = RequestTimer.current();
+			timer.enter(Phase.DATASTORE);
+			List<Object> entities = keyLookup.getAll(ofy(), clazz, ids);
+			timer.enter(Phase.SERIALIZE);
+			ProjectionPlan plan = getProjectionPlan(clazz, spec);
+			JsonCollectionWriter out = new JsonCollectionWriter(gsonWrapper.getGson(), resp.getWriter());
+			for (Object entity : entities) {
+				if (plan == null)
+					out.writeEntity(entity);
 				else 
-					buf.append(getPartialResponse(fields,mapIt.next()));
-				if (mapIt.hasNext()) buf.append(",");
+					plan.write(out.getJsonWriter(),entity);
 			}
-			buf.append("]");
-			logger.log(Level.INFO, "Returning JSON {0}",  buf.toString());
-			resp.getWriter().print(buf.toString());
+			out.close();
+			return;
+		} else if (spec.isCount()) {
+			countCollection(clazz, spec, resp);
+			return;
+		} else if (spec.getExport() != null) {
+			exportCollection(clazz, spec, resp);
+			return;
+		} else if (spec.isIndexAttributes()) {
+			byte[] json = metadata.getIndexAttributesJson();
+			resp.setContentLength(json.length);
+			resp.getOutputStream().write(json);
+			return;
+		}
+		int limit;
+		try {
+			Integer requested = spec.getLimit();
+			limit = requested == null ? getDefaultPageSize() : Math.min(requested, getMaxPageSize());
+		} catch (NumberFormatException e) {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'limit' parameter must be a positive number","0003",""));
 			return;
-		} else if (indexAttributes != null) {
-			Field[] fields = clazz.getDeclaredFields();
-			StringBuffer buf = new StringBuffer("[");
-			boolean first = true;
-			for(Field field : fields) {
-				Annotation[] annotations = field.getAnnotations();
-				for(Annotation annotation : annotations){
-					if (annotation instanceof Index) {
-						if (!first) buf.append(",");  else first = false;
-						buf.append(field.getName());
+		}
+		long byteBudget = getPageByteBudget();
+		// Only valid requests are cached, a hit needs no further checks
+		String pageKey = null;
+		long generation = 0;
+		if (pageCache != null) {
+			generation = PageCache.generation(metadata.getKind());
+			pageKey = PageCache.key(metadata.getKind(), generation, limit, spec.getFilter(), spec.getFields(), spec.getCursor());
+			PageCache.Page page = pageCache.get(pageKey);
+			if (page != null) {
+				RequestTimer.current().enter(Phase.WRITE);
+				writePage(req, resp, page);
+				return;
+			}
+		}
+		QueryFilter queryFilter = null;
+		if (spec.getFilter() != null) {
+			queryFilter = parseFilter(spec.getFilter(), resp);
+			if (queryFilter == null) return;
+			if (spec.getCursor() != null && !queryFilter.isCursorSupported()) {
+				resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'cursor' isn't supported with 'in' or 'ne' filters","0005",""));
+				return;
+			}
+		}
+		// Queries split into sub-queries by the Datastore can't be continued
+		boolean cursorSupported = queryFilter == null || queryFilter.isCursorSupported();
+		ProjectionPlan plan = getProjectionPlan(clazz, spec);
+		RequestTimer timer = RequestTimer.current();
+		timer.enter(Phase.DATASTORE);
+		PageQuery page = startPageQuery(clazz, plan, queryFilter, spec.getCursor(), limit);
+		List<Object> results = null;
+		if (!cursorSupported) {
+			// A page which can't be continued must be complete, rows beyond it would be lost unnoticed
+			results = page.fetch();
+			if (page.hasMore()) {
+				resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'in' and 'ne' filters must not match more objects than 'limit'","0006",""));
+				return;
+			}
+		}
+		ByteArrayOutputStream buffer = null;
+		Writer target;
+		if (pageKey != null) {
+			buffer = new ByteArrayOutputStream(4096);
+			target = new OutputStreamWriter(buffer, "UTF-8");
+		} else {
+			target = resp.getWriter();
+		}
+		JsonCollectionWriter out = new JsonCollectionWriter(gsonWrapper.getGson(), target);
+		String cursor = null;
+		if (results != null) {
+			timer.enter(Phase.SERIALIZE);
+			for (Object result : results) page.write(out, result);
+		} else {
+			page.writeTo(out, byteBudget);
+			cursor = page.nextCursor();
+		}
+		out.writeEntity(new MetaRecord(cursor == null ? "" : cursor));
+		out.close();
+		timer.enter(Phase.WRITE);
+		if (buffer != null) writePage(req, resp, pageCache.put(pageKey, buffer.toByteArray()));
+		if (prefetchExecutor != null && pageKey != null && cursor != null && byteBudget <= 0) {
+			String nextKey = PageCache.key(metadata.getKind(), generation, limit, spec.getFilter(), spec.getFields(), cursor);
+			prefetchPage(nextKey, clazz, plan, queryFilter, cursor, limit);
+		}
+	}
+	
+	/**
+	 * Returns <code>{"count":n}</code>, the number of objects matching the <code>filter</code>. 
+	 * The total and single equality conditions on counted properties are served by the sharded 
+	 * counters, other filters by a keys only count which doesn't load the entities. With 
+	 * <code>count=recount</code> the counter is deleted and seeded again.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void countCollection(Class clazz, QuerySpec spec, HttpServletResponse resp) throws IOException {
+		QueryFilter queryFilter = null;
+		if (spec.getFilter() != null) {
+			queryFilter = parseFilter(spec.getFilter(), resp);
+			if (queryFilter == null) return;
+		}
+		String counter = getCounterName(queryFilter);
+		RequestTimer timer = RequestTimer.current();
+		timer.enter(Phase.DATASTORE);
+		long count;
+		if (counter == null) {
+			count = queryCount(clazz, queryFilter);
+		} else {
+			Long value = null;
+			if (spec.isRecount()) 
+				counters.delete(counter);
+			else 
+				value = counters.get(counter);
+			if (value == null) {
+				final Class<?> countedClass = clazz;
+				final QueryFilter countedFilter = queryFilter;
+				value = counters.seed(metadata.getKind(), counter, new ShardedCounters.Seed() {
+					@Override
+					public long count() {
+						return queryCount(countedClass, countedFilter);
 					}
-				}
+				});
 			}
-			buf.append("]");
-			logger.log(Level.INFO, "Returning Index Attributes JSON {0}",  buf.toString());
-			resp.getWriter().print(buf.toString());
+			count = value;
+		}
+		timer.enter(Phase.WRITE);
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(resp.getWriter());
+		out.beginObject();
+		out.name("count").value(count);
+		out.endObject();
+		out.flush();
+	}
+	
+	/** The counter maintaining the count of the filter, <code>null</code> if it has to be queried */
+	private String getCounterName(QueryFilter queryFilter) {
+		if (counters == null) return null;
+		if (queryFilter == null) return metadata.getKind();
+		// Orders exclude the objects without the ordered property
+		if (queryFilter.getConditions().size() != 1 || !queryFilter.getOrders().isEmpty()) return null;
+		QueryFilter.Condition condition = queryFilter.getConditions().get(0);
+		if (condition.operator != FilterOperator.EQUAL || condition.prefix) return null;
+		for (EntityMetadata.Property property : countedProperties) 
+			if (property.name.equals(condition.property)) 
+				return ShardedCounters.name(metadata.getKind(), property.name, condition.value);
+		return null;
+	}
+	
+	private long queryCount(Class<?> clazz, QueryFilter queryFilter) {
+		com.google.appengine.api.datastore.Query query = new com.google.appengine.api.datastore.Query(Key.getKind(clazz));
+		query.setKeysOnly();
+		if (queryFilter != null) queryFilter.applyTo(query);
+		int count = getDatastoreService().prepare(query).countEntities(FetchOptions.Builder.withDefaults());
+		// Counted on the index, no entity is read
+		RequestTimer.current().read(0);
+		return count;
+	}
+	
+	/**
+	 * Streams the kind, optionally filtered, as newline delimited JSON with a line per object. The 
+	 * export stops ahead of the request deadline or the response size limit, its last line is a meta 
+	 * record whose cursor continues the export in the next request and is empty once the export is complete.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes", "static-access" })
+	private void exportCollection(Class clazz, QuerySpec spec, HttpServletResponse resp) throws IOException {
+		if (!EXPORT_NDJSON.equals(spec.getExport())) {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'export' parameter supports 'ndjson' only","0003",""));
 			return;
 		}
-		StringBuffer buf = new StringBuffer("[");
-		Query<?> query;
-		// The full query
-		query = ofy().load().type(clazz).limit(sResponseLimit);
-		if (filter != null) {
-			String likeStr = "";
-			boolean optionUsed = filter.contains("_option");
-			if (optionUsed) likeStr = " >=";
-			logger.log(Level.INFO, "Filter Like String {0}",  likeStr);
-			StringTokenizer tok = new StringTokenizer(filter,",");
-			
-			while (tok.hasMoreTokens()) {
-				StringTokenizer tok1 = new StringTokenizer(tok.nextToken(),":");
-				if (tok1.countTokens()!=2) {
-					resp.sendError(resp.SC_BAD_REQUEST, errorMsg(
-							"Bad Request Query Parameter provided to the API, 'filter' parameter must be of format <name>:<value>", 
-							"0003",""));
-					return;
-				}
-				String name = tok1.nextToken();
-				String value=tok1.nextToken();
-				String uppervalue = "";
-				for (int i=0; i< value.length();i++) {
-					char ch = value.charAt(i);
-					if (i== value.length()-1) ch++;
-					uppervalue = uppervalue+ch;
-					
-				}
-				logger.log(Level.INFO, "Filter Attribute {0}",  name+"/"+value);
-				logger.log(Level.INFO, "Upper Value {0}",  uppervalue);
-				if (!name.endsWith("_option"))  {
-					query = query.filter(name+likeStr, value);
-				    if (optionUsed) query = query.filter(name+" <", uppervalue);
-				}
+		QueryFilter queryFilter = null;
+		if (spec.getFilter() != null) {
+			queryFilter = parseFilter(spec.getFilter(), resp);
+			if (queryFilter == null) return;
+			if (!queryFilter.isCursorSupported()) {
+				resp.sendError(resp.SC_BAD_REQUEST, errorMsg("'export' isn't supported with 'in' or 'ne' filters","0005",""));
+				return;
 			}
-			
-				
 		}
-		String cursorStr = req.getParameter("cursor");
-		if (cursorStr != null) 
-			query = query.startAt(Cursor.fromWebSafeString(cursorStr));
-		int nrRec = 0;
+		ProjectionPlan plan = getProjectionPlan(clazz, spec);
+		// The session cache of the query is cleared while exporting
+		Objectify ofy = ofy();
+		Query<?> query = ofy.load().type(clazz).chunk(EXPORT_CHUNK);
+		if (queryFilter != null) query = queryFilter.applyTo(query);
+		if (spec.getCursor() != null) 
+			query = query.startAt(Cursor.fromWebSafeString(spec.getCursor()));
+		resp.setContentType("application/x-ndjson");
+		CountingWriter counter = new CountingWriter(resp.getWriter());
+		JsonWriter out = JsonCollectionWriter.newJsonWriter(counter);
+		// A top level value per line
+		out.setLenient(true);
+		Gson gson = gsonWrapper.getGson();
+		long byteBudget = getExportByteBudget();
+		RequestTimer timer = RequestTimer.current();
 		QueryResultIterator<?> iterator = query.iterator();
-		Collection collection = new ArrayList();		
-		while (iterator.hasNext()) {
-			nrRec++;
-			if (fields == null || fields.equals("")) {
-				collection.add(iterator.next());
-			} else {
-				Object obj = iterator.next();
-				try {
-					buf.append(getPartialResponse(fields,obj));
-				    buf.append(",");
-				} catch (Exception e) {
-					resp.sendError(resp.SC_BAD_REQUEST,errorMsg(e.getMessage(),"0","0"));
-					return;
-					// This shouldn't happen at all IllegalAccessException
+		boolean stopped = false;
+		int count = 0;
+		while (true) {
+			if (count > 0 && count % EXPORT_CHUNK == 0) {
+				ofy.clear();
+				timer.enter(Phase.WRITE);
+				counter.flush();
+				if (counter.getCount() >= byteBudget || getRemainingMillis() < EXPORT_DEADLINE_RESERVE_MILLIS) {
+					stopped = true;
+					break;
 				}
 			}
+			timer.enter(Phase.DATASTORE);
+			if (!iterator.hasNext()) break;
+			Object entity = iterator.next();
+			timer.enter(Phase.SERIALIZE);
+			if (plan == null)
+				gson.toJson(entity, entity.getClass(), out);
+			else
+				plan.write(out, entity);
+			counter.write('\n');
+			count++;
 		}
-		String cursor="";
-		if (nrRec==sResponseLimit) {
-			cursor = iterator.getCursor().toWebSafeString();
+		String cursor = "";
+		if (stopped) {
+			Cursor next = iterator.getCursor();
+			if (iterator.hasNext()) cursor = next.toWebSafeString();
 		}
-		MetaRecord metaObj = new MetaRecord(cursor); 
-		if (fields == null || fields.equals("")) {
-			collection.add(metaObj);
-			resp.getWriter().print((new GsonWrapper()).getGson().toJson(collection));
-		} else {
-			buf.append((new GsonWrapper()).getGson().toJson(metaObj));
-			buf.append("]");
-			resp.getWriter().print(buf.toString());
+		gson.toJson(new MetaRecord(cursor), MetaRecord.class, out);
+		counter.write('\n');
+		counter.flush();
+		timer.queried(count, EXPORT_CHUNK);
+		logger.log(Level.FINE, "Exported {0} objects", count);
+	}
+	
+	/** 
+	 * Milliseconds left until the request deadline, bounds the duration of an export. Outside of 
+	 * a request, e.g. on a backend, there is no deadline.
+	 */
+	protected long getRemainingMillis() {
+		ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		return environment == null ? Long.MAX_VALUE : environment.getRemainingMillis();
+	}
+	
+	/** 
+	 * Approximate size in bytes after which an export stops with a resume cursor, by default 
+	 * 24 MB to stay below the 32 MB response limit
+	 */
+	protected long getExportByteBudget() {
+		return EXPORT_BYTE_BUDGET;
+	}
+	
+	/**
+	 * Hands the query of the next page to the prefetch executor, which serializes it into the 
+	 * page cache. A failure or a rejected task only costs the cache entry.
+	 */
+	private void prefetchPage(final String key, final Class<?> clazz, final ProjectionPlan plan, 
+			final QueryFilter queryFilter, final String cursor, final int limit) {
+		try {
+			prefetchExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						PageQuery page = startPageQuery(clazz, plan, queryFilter, cursor, limit);
+						ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+						JsonCollectionWriter out = new JsonCollectionWriter(gsonWrapper.getGson(), new OutputStreamWriter(buffer, "UTF-8"));
+						page.writeTo(out, 0);
+						String next = page.nextCursor();
+						out.writeEntity(new MetaRecord(next == null ? "" : next));
+						out.close();
+						pageCache.put(key, buffer.toByteArray());
+					} catch (Exception e) {
+						logger.log(Level.FINE, "Prefetch of the next page failed", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.log(Level.FINE, "Prefetch of the next page rejected", e);
+		}
+	}
+	
+	/** Page size of collection requests without a <code>limit</code> parameter */
+	protected int getDefaultPageSize() {
+		return sResponseLimit;
+	}
+	
+	/** Upper bound of the <code>limit</code> parameter, larger limits are reduced to it */
+	protected int getMaxPageSize() {
+		return MAX_PAGE_SIZE;
+	}
+	
+	/**
+	 * Approximate size in bytes after which a collection page ends early, the cursor continues 
+	 * with the first object not written. By default 0, i.e. pages are only bounded by their limit. 
+	 * Pages of <code>in</code> and <code>ne</code> filters can't be continued and aren't bounded.
+	 */
+	protected long getPageByteBudget() {
+		return 0;
+	}
+	
+	/**
+	 * Creates the executor loading the next page of a collection into the page cache once a page 
+	 * was served, so that clients paging through a result set find the next page cached. By default 
+	 * <code>null</code>, i.e. pages aren't prefetched. App Engine holds the response until the request 
+	 * returns, so the executor must not run on the request thread; backend instances can use 
+	 * <code>ThreadManager.backgroundThreadFactory()</code>. The servlet doesn't shut it down. Requires 
+	 * a page cache (see {@link #createPageCache()}), isn't applied with a byte budget and costs a 
+	 * query per page which isn't requested.
+	 */
+	protected Executor createPrefetchExecutor() {
+		return null;
+	}
+	
+	/**
+	 * Starts the query of a page, with one result more than the page size to detect the last page. 
+	 * A <code>fields</code> selection of indexed properties is run as projection query if possible, 
+	 * a missing index is detected up front and the full entities are loaded instead.
+	 */
+	private PageQuery startPageQuery(Class<?> clazz, ProjectionPlan plan, QueryFilter queryFilter, String cursor, int limit) {
+		if (isProjectable(plan, queryFilter)) {
+			QueryResultIterator<Entity> iterator = getProjectionIterator(clazz, plan, queryFilter, cursor, limit);
+			try {
+				iterator.hasNext();
+				return new PageQuery(iterator, plan, true, limit, chunkSize(limit, true));
+			} catch (DatastoreNeedIndexException e) {
+				logger.log(Level.WARNING, "Projection query not indexed, loading the full entities: {0}", e.getMessage());
+			}
+		}
+		return startFullQuery(clazz, plan, queryFilter, cursor, limit);
+	}
+	
+	private boolean isProjectable(ProjectionPlan plan, QueryFilter queryFilter) {
+		return plan != null && plan.isIndexOnly() && isProjectionQueryEnabled() 
+				&& (queryFilter == null || (!queryFilter.hasEqualityOn(plan.getProjectedProperties()) 
+						&& queryFilter.isOrderedWithin(plan.getProjectedProperties())));
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private PageQuery startFullQuery(Class clazz, ProjectionPlan plan, QueryFilter queryFilter, String cursor, int limit) {
+		Query<?> query = ofy().load().type(clazz).limit(limit + 1).chunk(chunkSize(limit, false));
+		if (queryFilter != null) query = queryFilter.applyTo(query);
+		if (cursor != null) 
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		return new PageQuery(query.iterator(), plan, false, limit, chunkSize(limit, false));
+	}
+	
+	/** 
+	 * Batch size of a page query, small pages are read in a single round trip. Large pages of full 
+	 * entities are read in smaller batches than projections, whose results are only a few properties.
+	 */
+	private static int chunkSize(int limit, boolean projected) {
+		return Math.min(limit + 1, projected ? MAX_PROJECTION_CHUNK : MAX_ENTITY_CHUNK);
+	}
+	
+	@SuppressWarnings("static-access")
+	private static void writePage(HttpServletRequest req, HttpServletResponse resp, PageCache.Page page) throws IOException {
+		resp.setHeader("ETag", page.etag);
+		if (ETag.matches(req.getHeader("If-None-Match"), page.etag)) {
+			resp.setStatus(resp.SC_NOT_MODIFIED);
+			return;
 		}
-		
+		resp.setContentLength(page.bytes.length);
+		resp.getOutputStream().write(page.bytes);
+	}
+	
+	/**
+	 * Runs the <code>fields</code> selection as Datastore projection query (or keys only query if 
+	 * only the identifier is requested), so that only the index entries are read instead of the entities. 
+	 * The query is ordered by the key after the filter's orders, so that pages and cursors follow 
+	 * the order of the full query; projections lacking the composite index this needs fall back to it.
+	 */
+	private QueryResultIterator<Entity> getProjectionIterator(Class<?> clazz, ProjectionPlan plan, 
+			QueryFilter queryFilter, String cursor, int limit) {
+		com.google.appengine.api.datastore.Query query = new com.google.appengine.api.datastore.Query(Key.getKind(clazz));
+		String[] properties = plan.getProjectedProperties();
+		if (properties.length == 0) 
+			query.setKeysOnly();
+		for (String property : properties) 
+			query.addProjection(new PropertyProjection(property, plan.getProjectionType(property)));
+		if (queryFilter != null) queryFilter.applyTo(query);
+		// Sorted like the full query, an unsorted projection follows the index of its first property
+		String inequality = queryFilter == null ? null : queryFilter.getInequalityProperty();
+		if (inequality != null && queryFilter.getOrders().isEmpty() && !inequality.equals(Entity.KEY_RESERVED_PROPERTY)) 
+			query.addSort(inequality);
+		if (queryFilter == null || !queryFilter.isOrderedByKey()) 
+			query.addSort(Entity.KEY_RESERVED_PROPERTY);
+		int chunk = chunkSize(limit, true);
+		FetchOptions options = FetchOptions.Builder.withLimit(limit + 1).prefetchSize(chunk).chunkSize(chunk);
+		if (cursor != null) 
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		return getDatastoreService().prepare(query).asQueryResultIterator(options);
+	}
+	
+	/** The low level Datastore of the projection, keys only and count queries */
+	protected DatastoreService getDatastoreService() {
+		return DatastoreServiceFactory.getDatastoreService();
+	}
+	
+	/**
+	 * Whether a <code>fields</code> selection of indexed properties is served by a Datastore 
+	 * projection query, by default <code>false</code>. A projection only returns the entities 
+	 * which have an index entry for every projected property, entities written before the property 
+	 * was indexed, or with a conditional <code>@Index</code>, are missing from the pages. Enable 
+	 * it only if all entities are indexed, and maintain the composite indexes of the projections 
+	 * ordered by key, otherwise the full entities are loaded.
+	 */
+	protected boolean isProjectionQueryEnabled() {
+		return false;
 	}
 	
 	@SuppressWarnings({ "rawtypes", "unchecked", "static-access" })
-	private void getObject(Class clazz, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+	private void getObject(Class clazz, QuerySpec spec, HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		req.setCharacterEncoding("UTF-8");
 		resp.setCharacterEncoding("UTF-8");
 		StringTokenizer tok = new StringTokenizer(req.getPathInfo(),"/");
 		// This must be the identifier
 		if (tok.countTokens() == 1) {
-			Key<?> key = Key.create(clazz, Long.parseLong(tok.nextToken()));
-			logger.log(Level.INFO, "Going to get object {0}", key);
-			Object businessObj = ofy().load().type(clazz).filterKey(key).first().now();
+			long id = Long.parseLong(tok.nextToken());
+			RequestTimer timer = RequestTimer.current();
+			timer.enter(Phase.DATASTORE);
+			Object businessObj = keyLookup.get(ofy(), clazz, id);
+			timer.enter(Phase.SERIALIZE);
 			if (businessObj != null) {
-				if (fields == null || fields.equals(""))
-					resp.getWriter().print((new GsonWrapper()).getGson().toJson(businessObj));
-				else
-					try {
-						resp.getWriter().print(getPartialResponse(fields,businessObj));
-					} catch (Exception e) {
-						resp.sendError(resp.SC_BAD_REQUEST, errorMsg(e.getMessage(),"0","0"));
-						return;
-						// This shouldn't happen at all IllegalAccessException
-					}
+				ProjectionPlan plan = getProjectionPlan(clazz, spec);
+				String ifNoneMatch = req.getHeader("If-None-Match");
+				if (ifNoneMatch == null) {
+					// Streamed, the tag is digested on the way and set unless the body exceeded the response buffer
+					ETag.DigestWriter body = new ETag.DigestWriter(resp.getWriter());
+					writeObject(businessObj, plan, body);
+					timer.enter(Phase.WRITE);
+					if (!resp.isCommitted()) resp.setHeader("ETag", body.etag());
+				} else {
+					// Buffered to compare the tag before anything is written
+					StringWriter buffer = new StringWriter(512);
+					ETag.DigestWriter body = new ETag.DigestWriter(buffer);
+					writeObject(businessObj, plan, body);
+					String etag = body.etag();
+					timer.enter(Phase.WRITE);
+					resp.setHeader("ETag", etag);
+					if (ETag.matches(ifNoneMatch, etag))
+						resp.setStatus(resp.SC_NOT_MODIFIED);
+					else
+						resp.getWriter().write(buffer.toString());
+				}
 			}
 			else {
 				resp.getWriter().print("{}");
@@ -277,6 +1041,42 @@ public abstract class RestAPIServlet extends HttpServlet {
 		}
 	}
 	
+	private void writeObject(Object obj, ProjectionPlan plan, Writer target) throws IOException {
+		if (plan == null) {
+			gsonWrapper.getGson().toJson(obj, target);
+		} else {
+			JsonWriter out = JsonCollectionWriter.newJsonWriter(target);
+			plan.write(out, obj);
+			out.flush();
+		}
+	}
+	
+	/** 
+	 * Returns the compiled <code>filter</code> parameter, so that a bad filter is rejected before 
+	 * a query is issued, or <code>null</code> if an error was sent. Compiled filters are cached, 
+	 * repeated queries skip the parsing.
+	 */
+	@SuppressWarnings("static-access")
+	private QueryFilter parseFilter(String filter, HttpServletResponse resp) throws IOException {
+		String key = filter.trim();
+		QueryFilter queryFilter = queryFilters.get(key);
+		if (queryFilter != null) return queryFilter;
+		try {
+			queryFilter = QueryFilter.parse(key);
+		} catch (IllegalArgumentException e) {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg(e.getMessage(),"0003",""));
+			return null;
+		}
+		try {
+			queryFilter = queryFilter.bind(metadata);
+		} catch (IllegalArgumentException e) {
+			resp.sendError(resp.SC_BAD_REQUEST, errorMsg(e.getMessage(),"0005",""));
+			return null;
+		}
+		queryFilters.put(key, queryFilter);
+		return queryFilter;
+	}
+	
 	protected String errorMsg (String usrMsg, String code, String moreInfo) {
 		StringBuffer buf = new StringBuffer("{");
 		buf.append("message: \"").append(usrMsg).append("\"\n");
@@ -286,27 +1086,18 @@ public abstract class RestAPIServlet extends HttpServlet {
 		return buf.toString();
 	}
 	
-	private String getPartialResponse(String filterList, Object elem)   {
-		try {
-			Vector<String> fieldVec = new Vector<String>();
-			StringTokenizer tok = new StringTokenizer(filterList,",");
-			while (tok.hasMoreTokens()) fieldVec.add(tok.nextToken());
-			Field[] fields = elem.getClass().getDeclaredFields();
-			StringBuffer buf = new StringBuffer("{");
-			for (int i=0; i< fields.length; i++) {
-				if (fieldVec.indexOf(fields[i].getName()) >= 0) {
-					logger.log(Level.INFO, "Adding Field {0}",fields[i].getName()); 
-					Object value = fields[i].get(elem);
-					buf.append("\""+fields[i].getName()+"\""+":"+(new GsonWrapper()).getGson().toJson(value));
-					buf.append(",");
-				} 
-			}
-			buf.replace(buf.length()-1, buf.length(), "");
-			buf.append("}");
-			logger.log(Level.INFO, "Returning JSON {0}",buf.toString()); 
-			return buf.toString();
-		} catch (IllegalAccessException ex) {
-			return errorMsg("Illlegal AccessException shouldn't happen",ex.getMessage(),"");
+	/**
+	 * Returns the compiled projection for the <code>fields</code> parameter or <code>null</code> 
+	 * if the full objects are requested. 
+	 */
+	private ProjectionPlan getProjectionPlan(Class<?> clazz, QuerySpec spec) {
+		if (!spec.hasFields()) return null;
+		String key = ProjectionPlan.cacheKey(clazz, spec.getFields());
+		ProjectionPlan plan = projectionPlans.get(key);
+		if (plan == null) {
+			plan = ProjectionPlan.compile(clazz, spec.getFields(), gsonWrapper.getGson());
+			projectionPlans.put(key, plan);
 		}
+		return plan;
 	}
 }
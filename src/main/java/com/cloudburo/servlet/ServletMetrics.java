@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request metrics of the servlets of a persistency class: latency histograms per HTTP method and 
+ * phase, request and error counts, Datastore and response volume. All values are atomics, so that 
+ * recording doesn't lock; the registry is only looked up when a servlet is initialized.
+ */
+final class ServletMetrics {
+	
+	/** The part of a request its time is attributed to */
+	enum Phase { PARSE, DATASTORE, SERIALIZE, WRITE }
+	
+	static final int GET = 0;
+	static final int POST = 1;
+	static final int PUT = 2;
+	static final int DELETE = 3;
+	private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE" };
+	
+	private static final ConcurrentMap<String,ServletMetrics> registry = new ConcurrentHashMap<String,ServletMetrics>();
+	
+	private final String name;
+	private final LatencyHistogram[] latency = new LatencyHistogram[METHODS.length];
+	private final LatencyHistogram[][] phases = new LatencyHistogram[METHODS.length][Phase.values().length];
+	private final AtomicLongArray requests = new AtomicLongArray(METHODS.length);
+	private final AtomicLongArray errors = new AtomicLongArray(METHODS.length);
+	final AtomicLong entitiesRead = new AtomicLong();
+	final AtomicLong entitiesWritten = new AtomicLong();
+	final AtomicLong datastoreCalls = new AtomicLong();
+	final AtomicLong responseBytes = new AtomicLong();
+	
+	private ServletMetrics(String name) {
+		this.name = name;
+		for (int i=0; i<METHODS.length; i++) {
+			latency[i] = new LatencyHistogram();
+			for (int j=0; j<phases[i].length; j++) phases[i][j] = new LatencyHistogram();
+		}
+	}
+	
+	static String methodName(int method) {
+		return METHODS[method];
+	}
+	
+	/** The metrics of the servlets of <code>persistencyClass</code> */
+	static ServletMetrics get(Class<?> persistencyClass) {
+		String name = persistencyClass.getName();
+		ServletMetrics metrics = registry.get(name);
+		if (metrics == null) {
+			ServletMetrics created = new ServletMetrics(name);
+			metrics = registry.putIfAbsent(name, created);
+			if (metrics == null) metrics = created;
+		}
+		return metrics;
+	}
+	
+	void record(int method, long nanos, long[] phaseNanos, boolean failed) {
+		requests.incrementAndGet(method);
+		if (failed) errors.incrementAndGet(method);
+		latency[method].record(nanos);
+		for (int i=0; i<phaseNanos.length; i++) 
+			if (phaseNanos[i] > 0) phases[method][i].record(phaseNanos[i]);
+	}
+	
+	/** The metrics of all persistency classes in the Prometheus text format */
+	static String toPrometheus() {
+		Map<String,ServletMetrics> all = new TreeMap<String,ServletMetrics>(registry);
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "rest_request_duration_seconds", "histogram", "Duration of the requests");
+		for (ServletMetrics metrics : all.values()) 
+			for (int i=0; i<METHODS.length; i++) 
+				metrics.latency[i].writeTo(out, "rest_request_duration_seconds", metrics.labels(i));
+		header(out, "rest_request_phase_duration_seconds", "histogram", "Time of the requests spent per phase");
+		for (ServletMetrics metrics : all.values()) 
+			for (int i=0; i<METHODS.length; i++) 
+				for (Phase phase : Phase.values()) 
+					metrics.phases[i][phase.ordinal()].writeTo(out, "rest_request_phase_duration_seconds", 
+							metrics.labels(i) + ",phase=\"" + phase.name().toLowerCase() + "\"");
+		header(out, "rest_requests_total", "counter", "Number of requests");
+		for (ServletMetrics metrics : all.values()) 
+			for (int i=0; i<METHODS.length; i++) 
+				sample(out, "rest_requests_total", metrics.labels(i), metrics.requests.get(i));
+		header(out, "rest_request_errors_total", "counter", "Number of requests failed or answered with an error status");
+		for (ServletMetrics metrics : all.values()) 
+			for (int i=0; i<METHODS.length; i++) 
+				sample(out, "rest_request_errors_total", metrics.labels(i), metrics.errors.get(i));
+		header(out, "rest_datastore_entities_read_total", "counter", "Number of entities read from the Datastore");
+		for (ServletMetrics metrics : all.values()) 
+			sample(out, "rest_datastore_entities_read_total", metrics.labels(), metrics.entitiesRead.get());
+		header(out, "rest_datastore_entities_written_total", "counter", "Number of entities written or deleted");
+		for (ServletMetrics metrics : all.values()) 
+			sample(out, "rest_datastore_entities_written_total", metrics.labels(), metrics.entitiesWritten.get());
+		header(out, "rest_datastore_calls_total", "counter", "Number of Datastore gets, queries, puts and deletes issued");
+		for (ServletMetrics metrics : all.values()) 
+			sample(out, "rest_datastore_calls_total", metrics.labels(), metrics.datastoreCalls.get());
+		header(out, "rest_response_bytes_total", "counter", "Size of the response bodies, characters for text responses");
+		for (ServletMetrics metrics : all.values()) 
+			sample(out, "rest_response_bytes_total", metrics.labels(), metrics.responseBytes.get());
+		return out.toString();
+	}
+	
+	private String labels() {
+		return "class=\"" + name + "\"";
+	}
+	
+	private String labels(int method) {
+		return labels() + ",method=\"" + METHODS[method] + "\"";
+	}
+	
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	private static void sample(StringBuilder out, String name, String labels, long value) {
+		out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Counters stored as Datastore entities, split into shards so that concurrent writers rarely 
+ * update the same entity group. Shard 0 marks a seeded counter. A counter is seeded in two steps: 
+ * shard 0 is created in a seeding state, then the objects are counted and the count is stored. 
+ * Increments arriving while the counter is seeding are collected in shard 0 and added to the count, 
+ * increments of a counter which isn't seeded at all are dropped, as their objects were written before 
+ * the count was started. The count is an eventually consistent query, so objects written within 
+ * the Datastore's replication delay before a seed may be missed or counted twice; an increment racing 
+ * with a reset of the counters may survive the reset. Counts are therefore approximate, a counter 
+ * can be recounted by deleting and seeding it again.
+ */
+final class ShardedCounters {
+	
+	private static final Logger logger = Logger.getLogger(ShardedCounters.class.getCanonicalName());
+	
+	static final String KIND = "_RestCounter";
+	private static final String COUNT = "count";
+	private static final String OWNER = "owner";
+	private static final String SEEDING = "seeding";
+	private static final String PENDING = "pending";
+	private static final int MAX_RETRIES = 3;
+	/** A seed which didn't finish within the request deadline is taken over */
+	private static final long SEED_TIMEOUT_MILLIS = 60000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** Counts the objects of a counter to be seeded */
+	interface Seed {
+		long count();
+	}
+	
+	private final int shards;
+	private final Random random = new Random();
+	
+	ShardedCounters(int shards) {
+		this.shards = Math.max(shards, 1);
+	}
+	
+	/** 
+	 * Name of the counter of the objects of <code>kind</code> whose property has <code>value</code>. 
+	 * The value is hashed, which keeps the key names short and free of the shard separator.
+	 */
+	static String name(String kind, String property, Object value) {
+		if (value instanceof Double || value instanceof Float) 
+			value = ((Number) value).doubleValue();
+		else if (value instanceof Number) 
+			value = ((Number) value).longValue();
+		else if (value instanceof Date) 
+			value = ((Date) value).getTime();
+		return kind + "|" + property + "=" + UUID.nameUUIDFromBytes(String.valueOf(value).getBytes(UTF8));
+	}
+	
+	/** The value of the counter, <code>null</code> if it isn't seeded yet */
+	Long get(String name) {
+		List<Key> keys = new ArrayList<Key>(shards);
+		for (int i=0; i<shards; i++) keys.add(shardKey(name, i));
+		Map<Key,Entity> entities = datastore().get(keys);
+		RequestTimer.current().read(entities.size());
+		Entity head = entities.get(keys.get(0));
+		if (head == null || head.hasProperty(SEEDING)) return null;
+		long count = 0;
+		for (Entity entity : entities.values()) count += (Long) entity.getProperty(COUNT);
+		return count;
+	}
+	
+	/** 
+	 * Seeds a counter of <code>owner</code> with the <code>seed</code> count and returns its value. 
+	 * If the counter is seeded concurrently the count is returned without storing it.
+	 */
+	long seed(String owner, String name, Seed seed) {
+		DatastoreService datastore = datastore();
+		Key key = shardKey(name, 0);
+		Date started = new Date();
+		Transaction txn = datastore.beginTransaction();
+		try {
+			try {
+				Entity head = datastore.get(txn, key);
+				Date seeding = (Date) head.getProperty(SEEDING);
+				if (seeding == null) {
+					txn.rollback();
+					Long value = get(name);
+					if (value != null) return value;
+					return seed.count();
+				}
+				if (started.getTime() - seeding.getTime() < SEED_TIMEOUT_MILLIS) {
+					txn.rollback();
+					return seed.count();
+				}
+				logger.log(Level.INFO, "Counter {0} seeded since {1}, taken over", new Object[] { name, seeding });
+			} catch (EntityNotFoundException e) {
+				// Not seeded yet
+			}
+			Entity head = shard(key, owner, 0);
+			head.setUnindexedProperty(SEEDING, started);
+			head.setUnindexedProperty(PENDING, 0L);
+			datastore.put(txn, head);
+			txn.commit();
+		} catch (ConcurrentModificationException e) {
+			logger.log(Level.FINE, "Counter {0} seeded concurrently", name);
+			return seed.count();
+		} finally {
+			if (txn.isActive()) txn.rollback();
+		}
+		long value = seed.count();
+		for (int attempt=0; attempt<MAX_RETRIES; attempt++) {
+			txn = datastore.beginTransaction();
+			try {
+				Entity head = datastore.get(txn, key);
+				if (!started.equals(head.getProperty(SEEDING))) return value;
+				long pending = (Long) head.getProperty(PENDING);
+				head.removeProperty(SEEDING);
+				head.removeProperty(PENDING);
+				head.setUnindexedProperty(COUNT, value + pending);
+				datastore.put(txn, head);
+				txn.commit();
+				return value + pending;
+			} catch (EntityNotFoundException e) {
+				// Reset while counting
+				return value;
+			} catch (ConcurrentModificationException e) {
+				// Retried, increments were collected concurrently
+			} finally {
+				if (txn.isActive()) txn.rollback();
+			}
+		}
+		logger.log(Level.WARNING, "Counter {0} not seeded after {1} attempts", new Object[] { name, MAX_RETRIES });
+		return value;
+	}
+	
+	/** Adds <code>delta</code> to a random shard of a seeded counter, or to shard 0 of a seeding one */
+	void add(String owner, String name, long delta) {
+		DatastoreService datastore = datastore();
+		boolean seeding;
+		try {
+			seeding = datastore.get(shardKey(name, 0)).hasProperty(SEEDING);
+		} catch (EntityNotFoundException e) {
+			// The seed will count the object
+			return;
+		}
+		for (int attempt=0; attempt<MAX_RETRIES; attempt++) {
+			Key key = shardKey(name, seeding ? 0 : random.nextInt(shards));
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity entity;
+				try {
+					entity = datastore.get(txn, key);
+				} catch (EntityNotFoundException e) {
+					// Shard 0 of a seeding counter is only missing after a reset
+					if (seeding) return;
+					entity = shard(key, owner, 0);
+				}
+				String property = entity.hasProperty(SEEDING) ? PENDING : COUNT;
+				entity.setUnindexedProperty(property, (Long) entity.getProperty(property) + delta);
+				datastore.put(txn, entity);
+				txn.commit();
+				return;
+			} catch (ConcurrentModificationException e) {
+				// Retried on another random shard
+			} finally {
+				if (txn.isActive()) txn.rollback();
+			}
+		}
+		logger.log(Level.WARNING, "Counter {0} not updated after {1} attempts", new Object[] { name, MAX_RETRIES });
+	}
+	
+	/** Deletes a single counter, it is seeded again when read */
+	void delete(String name) {
+		List<Key> keys = new ArrayList<Key>(shards);
+		for (int i=0; i<shards; i++) keys.add(shardKey(name, i));
+		datastore().delete(keys);
+	}
+	
+	/** Deletes the counters of <code>owner</code>, they are seeded again when read */
+	void reset(String owner) {
+		Query query = new Query(KIND).setFilter(new FilterPredicate(OWNER, FilterOperator.EQUAL, owner)).setKeysOnly();
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : datastore().prepare(query).asQueryResultIterable(FetchOptions.Builder.withChunkSize(500))) 
+			keys.add(entity.getKey());
+		datastore().delete(keys);
+	}
+	
+	private Entity shard(Key key, String owner, long count) {
+		Entity entity = new Entity(key);
+		entity.setProperty(OWNER, owner);
+		entity.setUnindexedProperty(COUNT, count);
+		return entity;
+	}
+	
+	private static Key shardKey(String name, int index) {
+		return KeyFactory.createKey(KIND, name + "#" + index);
+	}
+	
+	private static DatastoreService datastore() {
+		return DatastoreServiceFactory.getDatastoreService();
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Shared, thread safe codec for the ISO-8601 wire formats of the date types: 
+ * <ul>
+ * <li><code>java.util.Date</code> as <code>2014-06-14T16:42:33.970Z</code> (offset of the default time zone)</li>
+ * <li><code>DateTime</code> as <code>2014-06-14T18:42:34.060+02:00</code> (offset of its own zone)</li>
+ * <li><code>LocalDateTime</code> as <code>2014-06-14T18:42:34.018</code></li>
+ * </ul>
+ * Values are formatted and parsed directly from their fields into a per thread buffer, without 
+ * formatter objects. Values outside of the years 1583 to 9999, offsets which aren't full minutes, 
+ * non ISO chronologies and non canonical input are delegated to the former <code>SimpleDateFormat</code> 
+ * and Joda formatters, so the output stays the same for all values.
+ */
+final class TemporalCodec {
+	
+	private static final String DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final int MIN_YEAR = 1583;
+	private static final int MAX_YEAR = 9999;
+	// "yyyy-MM-ddTHH:mm:ss.SSS" 
+	private static final int LOCAL_LENGTH = 23;
+	
+	private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+		protected char[] initialValue() {
+			return new char[32];
+		}
+	};
+	
+	static final TypeAdapter<Date> DATE_ADAPTER = new TypeAdapter<Date>() {
+		public void write(JsonWriter out, Date value) throws IOException {
+			if (value == null) out.nullValue(); else out.value(formatDate(value));
+		}
+		public Date read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			return parseDate(in.nextString());
+		}
+	};
+	
+	static final TypeAdapter<DateTime> DATE_TIME_ADAPTER = new TypeAdapter<DateTime>() {
+		public void write(JsonWriter out, DateTime value) throws IOException {
+			if (value == null) out.nullValue(); else out.value(formatDateTime(value));
+		}
+		public DateTime read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			return parseDateTime(in.nextString());
+		}
+	};
+	
+	static final TypeAdapter<LocalDateTime> LOCAL_DATE_TIME_ADAPTER = new TypeAdapter<LocalDateTime>() {
+		public void write(JsonWriter out, LocalDateTime value) throws IOException {
+			if (value == null) out.nullValue(); else out.value(formatLocalDateTime(value));
+		}
+		public LocalDateTime read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+			return parseLocalDateTime(in.nextString());
+		}
+	};
+	
+	private TemporalCodec() {
+	}
+	
+	static String formatDate(Date value) {
+		long millis = value.getTime();
+		int offset = TimeZone.getDefault().getOffset(millis);
+		String text = format(millis, offset, true);
+		if (text != null) return text;
+		// Former implementation, formats and reparses with the offset of the default time zone
+		SimpleDateFormat df = new SimpleDateFormat(DATE_PATTERN);
+		return DateTime.parse(df.format(value)).toString();
+	}
+	
+	static String formatDateTime(DateTime value) {
+		if (value.getChronology() instanceof ISOChronology) {
+			long millis = value.getMillis();
+			String text = format(millis, value.getZone().getOffset(millis), true);
+			if (text != null) return text;
+		}
+		return value.toString();
+	}
+	
+	static String formatLocalDateTime(LocalDateTime value) {
+		int year = value.getYear();
+		if (year >= MIN_YEAR && year <= MAX_YEAR) {
+			char[] buf = BUFFER.get();
+			int pos = writeLocal(buf, year, value.getMonthOfYear(), value.getDayOfMonth(), value.getHourOfDay(), 
+					value.getMinuteOfHour(), value.getSecondOfMinute(), value.getMillisOfSecond());
+			return new String(buf, 0, pos);
+		}
+		return ISODateTimeFormat.dateTime().print(value);
+	}
+	
+	static Date parseDate(String text) {
+		long millis = parseInstant(text);
+		if (millis != Long.MIN_VALUE) return new Date(millis);
+		try {
+			return new SimpleDateFormat(DATE_PATTERN).parse(text);
+		} catch(ParseException ex) { 
+			throw new JsonParseException("util.Date conversion failed");
+		}
+	}
+	
+	static DateTime parseDateTime(String text) {
+		long millis = parseInstant(text);
+		if (millis != Long.MIN_VALUE) return new DateTime(millis);
+		return new DateTime(text);
+	}
+	
+	static LocalDateTime parseLocalDateTime(String text) {
+		if (text.length() == LOCAL_LENGTH && isCanonicalLocal(text)) {
+			LocalDateTime value = new LocalDateTime(number(text, 0, 4), number(text, 5, 2), number(text, 8, 2), 
+					number(text, 11, 2), number(text, 14, 2), number(text, 17, 2), number(text, 20, 3));
+			return value;
+		}
+		return new LocalDateTime(text);
+	}
+	
+	/** Formats the instant with the given offset, <code>null</code> if outside of the fast path */
+	private static String format(long millis, int offset, boolean withOffset) {
+		if (offset % 60000 != 0) return null;
+		long local = millis + offset;
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int millisOfDay = (int) (local - days * MILLIS_PER_DAY);
+		long date = civilFromDays(days);
+		int year = (int) (date >> 16);
+		if (year < MIN_YEAR || year > MAX_YEAR) return null;
+		char[] buf = BUFFER.get();
+		int pos = writeLocal(buf, year, (int) (date >> 8) & 0xff, (int) date & 0xff, millisOfDay / 3600000, 
+				(millisOfDay / 60000) % 60, (millisOfDay / 1000) % 60, millisOfDay % 1000);
+		if (withOffset) {
+			if (offset == 0) {
+				buf[pos++] = 'Z';
+			} else {
+				int minutes = offset / 60000;
+				buf[pos++] = minutes < 0 ? '-' : '+';
+				if (minutes < 0) minutes = -minutes;
+				pos = write2(buf, pos, minutes / 60);
+				buf[pos++] = ':';
+				pos = write2(buf, pos, minutes % 60);
+			}
+		}
+		return new String(buf, 0, pos);
+	}
+	
+	private static int writeLocal(char[] buf, int year, int month, int day, int hour, int minute, int second, int millis) {
+		buf[0] = (char) ('0' + year / 1000);
+		buf[1] = (char) ('0' + (year / 100) % 10);
+		write2(buf, 2, year % 100);
+		buf[4] = '-';
+		write2(buf, 5, month);
+		buf[7] = '-';
+		write2(buf, 8, day);
+		buf[10] = 'T';
+		write2(buf, 11, hour);
+		buf[13] = ':';
+		write2(buf, 14, minute);
+		buf[16] = ':';
+		write2(buf, 17, second);
+		buf[19] = '.';
+		buf[20] = (char) ('0' + millis / 100);
+		write2(buf, 21, millis % 100);
+		return LOCAL_LENGTH;
+	}
+	
+	private static int write2(char[] buf, int pos, int value) {
+		buf[pos] = (char) ('0' + value / 10);
+		buf[pos+1] = (char) ('0' + value % 10);
+		return pos + 2;
+	}
+	
+	/** 
+	 * Parses <code>yyyy-MM-ddTHH:mm:ss.SSS</code> followed by <code>Z</code> or <code>+HH:mm</code>, 
+	 * returns <code>Long.MIN_VALUE</code> for any other input
+	 */
+	private static long parseInstant(String text) {
+		int length = text.length();
+		if ((length != LOCAL_LENGTH + 1 && length != LOCAL_LENGTH + 6) || !isCanonicalLocal(text)) return Long.MIN_VALUE;
+		int offset;
+		char sign = text.charAt(LOCAL_LENGTH);
+		if (length == LOCAL_LENGTH + 1) {
+			if (sign != 'Z') return Long.MIN_VALUE;
+			offset = 0;
+		} else {
+			if ((sign != '+' && sign != '-') || text.charAt(LOCAL_LENGTH + 3) != ':' 
+					|| !digits(text, LOCAL_LENGTH + 1, 2) || !digits(text, LOCAL_LENGTH + 4, 2)) return Long.MIN_VALUE;
+			int hours = number(text, LOCAL_LENGTH + 1, 2);
+			int minutes = number(text, LOCAL_LENGTH + 4, 2);
+			if (hours > 23 || minutes > 59) return Long.MIN_VALUE;
+			offset = (hours * 60 + minutes) * 60000;
+			if (sign == '-') offset = -offset;
+		}
+		long days = daysFromCivil(number(text, 0, 4), number(text, 5, 2), number(text, 8, 2));
+		long millisOfDay = ((number(text, 11, 2) * 60L + number(text, 14, 2)) * 60 + number(text, 17, 2)) * 1000 
+				+ number(text, 20, 3);
+		return days * MILLIS_PER_DAY + millisOfDay - offset;
+	}
+	
+	/** Checks the shape and the field ranges of <code>yyyy-MM-ddTHH:mm:ss.SSS</code> */
+	private static boolean isCanonicalLocal(String text) {
+		if (text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T' || text.charAt(13) != ':' 
+				|| text.charAt(16) != ':' || text.charAt(19) != '.') return false;
+		if (!digits(text, 0, 4) || !digits(text, 5, 2) || !digits(text, 8, 2) || !digits(text, 11, 2) 
+				|| !digits(text, 14, 2) || !digits(text, 17, 2) || !digits(text, 20, 3)) return false;
+		int year = number(text, 0, 4);
+		int month = number(text, 5, 2);
+		int day = number(text, 8, 2);
+		return year >= MIN_YEAR && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) 
+				&& number(text, 11, 2) <= 23 && number(text, 14, 2) <= 59 && number(text, 17, 2) <= 59;
+	}
+	
+	private static boolean digits(String text, int from, int count) {
+		for (int i=from; i<from+count; i++) {
+			char ch = text.charAt(i);
+			if (ch < '0' || ch > '9') return false;
+		}
+		return true;
+	}
+	
+	private static int number(String text, int from, int count) {
+		int value = 0;
+		for (int i=from; i<from+count; i++) value = value * 10 + (text.charAt(i) - '0');
+		return value;
+	}
+	
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+		return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+	}
+	
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+	}
+	
+	/** Days since 1970-01-01 of a proleptic Gregorian date */
+	static long daysFromCivil(long year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yoe = year - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+	
+	/** Inverse of {@link #daysFromCivil}, returns the date packed as <code>year << 16 | month << 8 | day</code> */
+	static long civilFromDays(long days) {
+		days += 719468;
+		long era = (days >= 0 ? days : days - 146096) / 146097;
+		long doe = days - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long year = yoe + era * 400;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long day = doy - (153 * mp + 2) / 5 + 1;
+		long month = mp < 10 ? mp + 3 : mp - 9;
+		if (month <= 2) year++;
+		return (year << 16) | (month << 8) | day;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Two level entity cache, typically a {@link LocalEntityCache} in front of a {@link MemcacheEntityCache}.
+ * Hits in the second level are copied into the first level.
+ */
+public class TieredEntityCache implements EntityCache {
+	
+	private final EntityCache first;
+	private final EntityCache second;
+	private final CacheStatistics statistics = new CacheStatistics();
+	
+	public TieredEntityCache(EntityCache first, EntityCache second) {
+		this.first = first;
+		this.second = second;
+	}
+	
+	public Object get(Key<?> key) {
+		Object entity = first.get(key);
+		if (entity == null) {
+			entity = second.get(key);
+			if (entity != null) first.put(key, entity);
+		}
+		if (entity == null) statistics.miss(); else statistics.hit();
+		return entity;
+	}
+	
+	public void put(Key<?> key, Object entity) {
+		first.put(key, entity);
+		second.put(key, entity);
+	}
+	
+	public void invalidate(Key<?> key) {
+		first.invalidate(key);
+		second.invalidate(key);
+	}
+	
+	/** Overall hit and miss counters, the evictions are counted by the levels themselves */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+	
+	public EntityCache getFirstLevel() {
+		return first;
+	}
+	
+	public EntityCache getSecondLevel() {
+		return second;
+	}
+}
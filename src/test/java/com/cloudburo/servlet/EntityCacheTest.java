@@ -0,0 +1,133 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import static junit.framework.Assert.assertEquals;
+
+import com.cloudburo.entity.Customer;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntityCacheTest {
+	
+	private final LocalServiceTestHelper helper = 
+			new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+	
+	private Key<Customer> key1;
+	private Key<Customer> key2;
+	private Key<Customer> key3;
+	
+	  @Before
+	  public void setupHelper() {
+		helper.setUp();
+		key1 = Key.create(Customer.class, 1);
+		key2 = Key.create(Customer.class, 2);
+		key3 = Key.create(Customer.class, 3);
+	  }
+	  
+	  @After
+	  public void tearDownHelper() {
+		helper.tearDown();
+	  }
+	  
+	  @Test
+	  public void localStatistics() {
+		LocalEntityCache cache = new LocalEntityCache(2, 60000);
+		Customer customer = customer(1, "Cached1");
+		cache.put(key1, customer);
+		cache.put(key2, customer(2, "Cached2"));
+		assertEquals("Checking hit", customer, cache.get(key1));
+		assertEquals("Checking miss", null, cache.get(key3));
+		
+		// TEST: The least recently used entry is evicted once the cache is full
+		cache.put(key3, customer(3, "Cached3"));
+		assertEquals("Checking evicted entry", null, cache.get(key2));
+		assertEquals("Checking recently used entry", customer, cache.get(key1));
+		assertEquals("Checking hit count", 2, cache.getStatistics().getHitCount());
+		assertEquals("Checking miss count", 2, cache.getStatistics().getMissCount());
+		assertEquals("Checking eviction count", 1, cache.getStatistics().getEvictionCount());
+		
+		cache.invalidate(key1);
+		assertEquals("Checking invalidated entry", null, cache.get(key1));
+	  }
+	  
+	  @Test
+	  public void localExpiry() throws InterruptedException {
+		LocalEntityCache cache = new LocalEntityCache(10, 20);
+		cache.put(key1, customer(1, "Expiring"));
+		assertEquals("Checking entry before expiry", "Expiring", ((Customer) cache.get(key1)).name);
+		Thread.sleep(50);
+		assertEquals("Checking expired entry", null, cache.get(key1));
+		assertEquals("Checking miss count", 1, cache.getStatistics().getMissCount());
+	  }
+	  
+	  @Test
+	  public void memcache() {
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+		MemcacheEntityCache cache = new MemcacheEntityCache(memcache, new GsonWrapper().getGson(), Customer.class, 60);
+		cache.put(key1, customer(1, "Shared1"));
+		
+		// TEST: Entries are stored as JSON, every hit is a copy
+		Customer copy = (Customer) cache.get(key1);
+		assertEquals("Checking memcache hit", "Shared1", copy.name);
+		assertEquals("Checking identifier", Long.valueOf(1), copy._id);
+		assertEquals("Checking memcache miss", null, cache.get(key2));
+		cache.invalidate(key1);
+		assertEquals("Checking invalidated entry", null, cache.get(key1));
+		assertEquals("Checking hit count", 1, cache.getStatistics().getHitCount());
+		assertEquals("Checking miss count", 2, cache.getStatistics().getMissCount());
+	  }
+	  
+	  @Test
+	  public void tiered() {
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+		// Two instances with their own local level sharing the memcache
+		TieredEntityCache instance1 = new TieredEntityCache(new LocalEntityCache(10, 60000), 
+				new MemcacheEntityCache(memcache, new GsonWrapper().getGson(), Customer.class, 60));
+		TieredEntityCache instance2 = new TieredEntityCache(new LocalEntityCache(10, 60000), 
+				new MemcacheEntityCache(memcache, new GsonWrapper().getGson(), Customer.class, 60));
+		instance1.put(key1, customer(1, "Tiered1"));
+		
+		// TEST: A hit in the memcache level is copied into the local level
+		assertEquals("Checking second level hit", "Tiered1", ((Customer) instance2.get(key1)).name);
+		assertEquals("Checking second level statistics", 1, instance2.getSecondLevel().getStatistics().getHitCount());
+		assertEquals("Checking copied entry", "Tiered1", ((Customer) instance2.getFirstLevel().get(key1)).name);
+		assertEquals("Checking overall hit count", 1, instance2.getStatistics().getHitCount());
+		
+		// TEST: Invalidation clears both levels of the instance
+		instance1.invalidate(key1);
+		assertEquals("Checking invalidated entry", null, instance1.get(key1));
+		assertEquals("Checking overall miss count", 1, instance1.getStatistics().getMissCount());
+	  }
+	  
+	  private static Customer customer(long id, String name) {
+		Customer customer = new Customer();
+		customer._id = id;
+		customer.name = name;
+		return customer;
+	  }
+}
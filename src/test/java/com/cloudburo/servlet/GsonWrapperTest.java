@@ -0,0 +1,170 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+
+package com.cloudburo.servlet;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import com.cloudburo.entity.Customer;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.Gson;
+import com.google.gson.JsonPrimitive;
+import com.googlecode.objectify.Key;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class GsonWrapperTest {
+	
+	private static final String[] ZONES = { "UTC", "Europe/Zurich", "America/St_Johns", "Asia/Kathmandu", "Pacific/Chatham" };
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	
+	private Gson gson;
+	private TimeZone defaultZone;
+	private DateTimeZone defaultDateTimeZone;
+	
+	  @Before
+	  public void setupGson() {
+		helper.setUp();
+		gson = (new GsonWrapper()).getGson();
+		defaultZone = TimeZone.getDefault();
+		defaultDateTimeZone = DateTimeZone.getDefault();
+	  }
+	  
+	  @After
+	  public void restoreTimeZone() {
+		TimeZone.setDefault(defaultZone);
+		DateTimeZone.setDefault(defaultDateTimeZone);
+		helper.tearDown();
+	  }
+	  
+	  @Test
+	  public void generatedCodec() {
+		// The Customer codec is generated by the EntityCodecProcessor while compiling the tests
+		assertTrue("Checking generated codec", gson.getAdapter(Customer.class) instanceof EntityCodec);
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+		Customer customer = new Customer();
+		customer._id = 4711L;
+		customer.name = "Muster";
+		customer.email = "<muster@localhost>";
+		customer.date = new Date(0);
+		String json = gson.toJson(customer);
+		assertEquals("Checking codec output", 
+				"{\"_id\":4711,\"name\":\"Muster\",\"email\":\"\\u003cmuster@localhost\\u003e\",\"date\":\"1970-01-01T00:00:00.000Z\"}", json);
+		assertEquals("Checking codec round trip", json, gson.toJson(gson.fromJson(json, Customer.class)));
+	  }
+	  
+	  static class Reference {
+		  Key<Customer> customer;
+		  Key<?> any;
+	  }
+	  
+	  @Test
+	  public void keyRoundTrip() {
+		Reference ref = new Reference();
+		ref.customer = Key.create(Customer.class, 42);
+		assertEquals("Checking key without parent", "{\"customer\":42}", gson.toJson(ref));
+		assertEquals("Checking numeric string", ref.customer, gson.fromJson("{\"customer\":\"42\"}", Reference.class).customer);
+		
+		Key<Customer> parent = Key.create(Key.create(Customer.class, "root"), Customer.class, 4711);
+		ref.customer = Key.create(parent, Customer.class, "a;b:c%");
+		String json = gson.toJson(ref);
+		assertEquals("Checking key with parent", "{\"customer\":\"Customer:root;Customer:4711;a%3Bb%3Ac%25\"}", json);
+		assertEquals("Checking key round trip", ref.customer, gson.fromJson(json, Reference.class).customer);
+		
+		// TEST: Names which look numeric stay names, with and without parent
+		ref.customer = Key.create(Customer.class, "123");
+		json = gson.toJson(ref);
+		assertEquals("Checking numeric name", "{\"customer\":\"%3123\"}", json);
+		assertEquals("Checking numeric name round trip", ref.customer, gson.fromJson(json, Reference.class).customer);
+		ref.customer = Key.create(parent, Customer.class, "-42");
+		assertEquals("Checking numeric name with parent", ref.customer, gson.fromJson(gson.toJson(ref), Reference.class).customer);
+		
+		// A Key<?> needs the kind of the key itself
+		Reference any = gson.fromJson("{\"any\":\"Customer:root;Customer:4711\"}", Reference.class);
+		assertEquals("Checking wildcard key", parent, any.any);
+	  }
+	  
+	  @Test
+	  public void temporalRoundTrip() {
+		Random random = new Random(4711);
+		for (String zone : ZONES) {
+			TimeZone.setDefault(TimeZone.getTimeZone(zone));
+			DateTimeZone.setDefault(DateTimeZone.forID(zone));
+			for (int i=0; i<2000; i++) {
+				// Instants between 1600 and 2100 and a few beyond the year 9999
+				long millis = (i % 10 == 0) ? 253402300800000L + (long) (random.nextDouble() * 31536000000000L) 
+						: -11676096000000L + (long) (random.nextDouble() * 15778540800000L);
+				
+				// TEST: java.util.Date, formatted with the offset of the default time zone
+				Date date = new Date(millis);
+				String json = gson.toJson(date);
+				assertEquals("Checking Date format", legacyDate(date), json);
+				// Offsets with seconds (local mean time) are truncated by the wire format, compare with the parsed value
+				assertEquals("Checking Date round trip", DateTime.parse(gson.fromJson(json, String.class)).toDate(), 
+						gson.fromJson(json, Date.class));
+				
+				// TEST: Joda DateTime, formatted with the offset of its own zone
+				DateTime dateTime = new DateTime(millis, DateTimeZone.forID(ZONES[i % ZONES.length]));
+				json = gson.toJson(dateTime);
+				assertEquals("Checking DateTime format", gson.toJson(new JsonPrimitive(dateTime.toString())), json);
+				assertEquals("Checking DateTime round trip", new DateTime(dateTime.toString()), gson.fromJson(json, DateTime.class));
+				
+				// TEST: Joda LocalDateTime without offset
+				LocalDateTime localDateTime = new LocalDateTime(millis);
+				json = gson.toJson(localDateTime);
+				assertEquals("Checking LocalDateTime format", 
+						gson.toJson(new JsonPrimitive(ISODateTimeFormat.dateTime().print(localDateTime))), json);
+				assertEquals("Checking LocalDateTime round trip", localDateTime, gson.fromJson(json, LocalDateTime.class));
+			}
+		}
+	  }
+	  
+	  @Test
+	  public void temporalNonCanonicalInput() {
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Zurich"));
+		DateTimeZone.setDefault(DateTimeZone.forID("Europe/Zurich"));
+		assertEquals("Checking DateTime without millis", new DateTime("2014-06-14T18:42:34+02:00"), 
+				gson.fromJson("\"2014-06-14T18:42:34+02:00\"", DateTime.class));
+		assertEquals("Checking LocalDateTime date only", new LocalDateTime("2014-06-14"), 
+				gson.fromJson("\"2014-06-14\"", LocalDateTime.class));
+		assertEquals("Checking Date with numeric offset", new Date(1402764153970L), 
+				gson.fromJson("\"2014-06-14T18:42:33.970+02:00\"", Date.class));
+		assertEquals("Checking null", null, gson.fromJson("null", Date.class));
+	  }
+	  
+	  /** Serialization of the former DateTypeConverter */
+	  private String legacyDate(Date src) {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+		DateTime dt = DateTime.parse(df.format(src));
+		return gson.toJson(new JsonPrimitive(dt.toString()));
+	  }
+}
@@ -0,0 +1,154 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (C) 2013 Felix Kuestahler <felix@cloudburo.com> http://cloudburo.com
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated 
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation 
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, 
+ * and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of 
+ * the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO 
+ * THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE. 
+ */
+package com.cloudburo.servlet;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cloudburo.entity.Customer;
+import com.cloudburo.entity.CustomerServlet;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class RequestTracerTest {
+	
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private final Logger logger = Logger.getLogger(RequestTracer.class.getCanonicalName());
+	private final List<LogRecord> records = new ArrayList<LogRecord>();
+	private final Handler handler = new Handler() {
+		public void publish(LogRecord record) {
+			records.add(record);
+		}
+		public void flush() {
+		}
+		public void close() {
+		}
+	};
+	
+	  @Before
+	  public void setupHelper() {
+		helper.setUp();
+		logger.addHandler(handler);
+	  }
+	  
+	  @After
+	  public void tearDownHelper() {
+		logger.removeHandler(handler);
+		helper.tearDown();
+	  }
+	  
+	  @Test
+	  public void sampling() {
+		RequestTracer tracer = new RequestTracer(4, 0, false);
+		for (int i=0; i<12; i++) finish(tracer, "/sampled", 0);
+		assertEquals("Checking one in four requests traced", 3, records.size());
+		assertEquals("Checking sampled level", Level.INFO, records.get(0).getLevel());
+		assertEquals("Checking spans logged", true, records.get(0).getMessage().contains(" spans:"));
+	  }
+	  
+	  @Test
+	  public void slowRequest() {
+		RequestTracer tracer = new RequestTracer(0, 5, false);
+		finish(tracer, "/fast", 0);
+		assertEquals("Checking fast request not traced", 0, records.size());
+		
+		// TEST: A request over the threshold is traced although it isn't sampled
+		finish(tracer, "/slow", 20);
+		assertEquals("Checking slow request traced", 1, records.size());
+		assertEquals("Checking slow level", Level.WARNING, records.get(0).getLevel());
+		assertEquals("Checking slow request path", true, records.get(0).getMessage().startsWith("GET /slow "));
+		assertEquals("Checking totals without spans", false, records.get(0).getMessage().contains(" spans:"));
+	  }
+	  
+	  @SuppressWarnings("serial")
+	  @Test
+	  public void payload() throws IOException, ServletException {
+		CustomerServlet servlet = new CustomerServlet() {
+			protected int getTraceSampleInterval() {
+				return 1;
+			}
+		};
+		servlet.init();
+		servlet.doGet(request("filter=name:Secret"), response());
+		assertEquals("Checking request traced", 1, records.size());
+		assertEquals("Checking query string not logged", false, records.get(0).getMessage().contains("Secret"));
+		
+		// TEST: The query string is only logged once enabled
+		servlet = new CustomerServlet() {
+			protected int getTraceSampleInterval() {
+				return 1;
+			}
+			protected boolean isPayloadLoggingEnabled() {
+				return true;
+			}
+		};
+		servlet.init();
+		servlet.doGet(request("filter=name:Secret"), response());
+		assertEquals("Checking query string logged", true, records.get(1).getMessage().contains("?filter=name:Secret"));
+	  }
+	  
+	  /** Finishes a GET request taking at least <code>millis</code> */
+	  private static void finish(RequestTracer tracer, String path, long millis) {
+		RequestTimer timer = RequestTimer.start(ServletMetrics.get(Customer.class), ServletMetrics.GET, tracer, request(path, null));
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		timer.completed();
+		timer.finish();
+	  }
+	  
+	  private static HttpServletRequest request(String path, String queryString) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getPathInfo()).thenReturn(path);
+		when(request.getQueryString()).thenReturn(queryString);
+		return request;
+	  }
+	  
+	  private static HttpServletRequest request(String queryString) {
+		return request("/", queryString);
+	  }
+	  
+	  private static HttpServletResponse response() throws IOException {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+		return response;
+	  }
+}